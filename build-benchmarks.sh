@@ -0,0 +1,18 @@
+# This script should be run from the directory it is in
+# Requires the JMH jars, download jmh-core, jmh-generator-annprocess, jopt-simple and commons-math3
+# from Maven Central into a directory and set JMH_HOME to it. Arguments are passed to JMH, for example:
+#   JMH_HOME=~/jmh ./build-benchmarks.sh BackgroundBenchmark -p png=fast
+
+if [ -z "$JMH_HOME" ]; then
+  echo "JMH_HOME is not set, it should be the directory with the JMH jars"
+  exit 1
+fi
+JMH_CLASSPATH=$(ls "$JMH_HOME"/*.jar | tr '\n' ':')
+
+# Build, the annotation processor generates the benchmark classes
+rm -rf ./build-benchmarks
+javac -d ./build-benchmarks -cp "$JMH_CLASSPATH" ./z2-hdpack-builder/src/org/lilosan/tiled/*.java ./z2-hdpack-builder/src/org/lilosan/tiled/utils/*.java ./z2-hdpack-builder/bench/org/lilosan/tiled/bench/*.java
+
+# Run, with the allocation rate of every benchmark
+cd ./z2-hdpack-builder
+java -cp "../build-benchmarks:$JMH_CLASSPATH" org.openjdk.jmh.Main -prof gc "$@"
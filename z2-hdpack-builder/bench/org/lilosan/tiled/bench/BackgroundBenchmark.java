@@ -0,0 +1,57 @@
+package org.lilosan.tiled.bench;
+
+import org.lilosan.tiled.PngEncoder;
+import org.lilosan.tiled.TiledTMX;
+import org.lilosan.tiled.TiledTSX;
+import org.lilosan.tiled.Zelda2HiResGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The work of the generator for one background: composing the HD pack layout of a map and encoding it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BackgroundBenchmark {
+
+    @Param({"palace-1/08-00.tmx", "town-rauru/06-00.tmx"})
+    public String map;
+
+    @Param({"fast", "default", "max"})
+    public String png;
+
+    private TiledTMX tmx;
+    private TiledTSX tsx;
+    private PngEncoder pngEncoder;
+    private BufferedImage background;
+
+    @Setup
+    public void setUp() throws Exception {
+        tmx = TiledTMX.getInstance(BenchmarkAssets.getFile(map));
+        tsx = TiledTSX.load(BenchmarkAssets.getTsx(map.substring(0, map.indexOf('/'))));
+        pngEncoder = PngEncoder.forMode(png);
+        background = Zelda2HiResGenerator.composeBackground(tmx, tsx);
+    }
+
+    @Benchmark
+    public BufferedImage compose() {
+        return Zelda2HiResGenerator.composeBackground(tmx, tsx);
+    }
+
+    @Benchmark
+    public void encode() throws Exception {
+        pngEncoder.write(background, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public void composeAndEncode() throws Exception {
+        pngEncoder.write(Zelda2HiResGenerator.composeBackground(tmx, tsx), OutputStream.nullOutputStream());
+    }
+}
@@ -0,0 +1,35 @@
+package org.lilosan.tiled.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The bundled original assets used as fixtures. Their location is given by the assets system property,
+ * by default the benchmarks run from z2-hdpack-builder like the generator.
+ */
+public class BenchmarkAssets {
+
+    public static final String ASSETS = System.getProperty("assets", "../original-assets");
+
+    public static File getFile(String relativePath) {
+        return new File(ASSETS + "/" + relativePath);
+    }
+
+    public static File getTsx(String area) {
+        return getFile(area + "/" + area + ".tsx");
+    }
+
+    public static List<File> getTmxs(String area) {
+        List<File> tmxs = new ArrayList<>();
+        File[] files = getFile(area).listFiles();
+        Arrays.sort(files);
+        for (File file:files) {
+            if (file.getName().endsWith(".tmx")) {
+                tmxs.add(file);
+            }
+        }
+        return tmxs;
+    }
+}
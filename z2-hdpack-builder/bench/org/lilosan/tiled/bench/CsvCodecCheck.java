@@ -0,0 +1,83 @@
+package org.lilosan.tiled.bench;
+
+import org.lilosan.tiled.CsvCodec;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that the CSV codec reads back what it writes, for the edge values of an int and for random layers fed in
+ * chunks of any size, and that ids out of the range of an int and misplaced signs are rejected like Integer.parseInt does.
+ * Exits with 1 on a failure, it is built and run like {@link RuleEquivalenceCheck}.
+ */
+public class CsvCodecCheck {
+
+    private static final int[] EDGE_VALUES = {0, 1, 9, 10, -1, -9, -10, 99, 100, Integer.MAX_VALUE, Integer.MAX_VALUE - 1,
+            Integer.MIN_VALUE, Integer.MIN_VALUE + 1, 1 << 30, -(1 << 30), 999_999_999, 1_000_000_000, -1_000_000_000};
+
+    private static final List<String> INVALID = List.of("2147483648", "-2147483649", "4294967295", "99999999999",
+            "-", "1,-,2", "1-2", "--1", "- 1", "1.5", "a");
+
+    public static void main(String[] args) {
+        Random random = new Random((args.length > 0) ? Long.parseLong(args[0]) : 0);
+        int failures = 0;
+
+        // Every edge value in every position of a line
+        int width = EDGE_VALUES.length;
+        int[] edges = new int[width * width];
+        for (int y = 0; y < width; y++) {
+            for (int x = 0; x < width; x++) {
+                edges[y * width + x] = EDGE_VALUES[(x + y) % width];
+            }
+        }
+        failures += checkRoundTrip(edges, width, width, random);
+
+        for (int i = 0; i < 1000; i++) {
+            int layerWidth = 1 + random.nextInt(40);
+            int layerHeight = 1 + random.nextInt(40);
+            int[] data = new int[layerWidth * layerHeight];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = (random.nextInt(4) == 0) ? random.nextInt() : random.nextInt(300);
+            }
+            failures += checkRoundTrip(data, layerWidth, layerHeight, random);
+        }
+
+        for (String csv:INVALID) {
+            try {
+                decode(csv, csv.length()).finish();
+                System.out.println("Accepted: " + csv);
+                failures++;
+            } catch (NumberFormatException e) {
+                // Expected
+            }
+        }
+
+        System.out.println("CSV codec: " + failures + " failures");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static int checkRoundTrip(int[] data, int width, int height, Random random) {
+        String csv = CsvCodec.toString(data, width, height);
+        CsvCodec.Decoder decoder = decode(csv, 1 + random.nextInt(16));
+        if (!Arrays.equals(data, decoder.finish()) || decoder.getWidth() != width || decoder.getHeight() != height) {
+            System.out.println("Not read back: " + width + "x" + height + " layer");
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Feeds the text to a decoder in chunks of the given size, like the XML parser does.
+     */
+    private static CsvCodec.Decoder decode(String csv, int chunk) {
+        CsvCodec.Decoder decoder = new CsvCodec.Decoder();
+        char[] chars = csv.toCharArray();
+        for (int start = 0; start < chars.length; start += chunk) {
+            decoder.decode(chars, start, Math.min(chunk, chars.length - start));
+        }
+        return decoder;
+    }
+}
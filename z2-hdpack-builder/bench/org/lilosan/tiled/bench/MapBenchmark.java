@@ -0,0 +1,62 @@
+package org.lilosan.tiled.bench;
+
+import org.lilosan.tiled.TiledTMX;
+import org.lilosan.tiled.TiledTSX;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading, writing and rendering of a single map and loading of its tileset.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MapBenchmark {
+
+    @Param({"palace-1/08-00.tmx", "town-rauru/06-00.tmx"})
+    public String map;
+
+    private File tmxFile;
+    private File tsxFile;
+    private TiledTMX tmx;
+    private TiledTSX tsx;
+
+    @Setup
+    public void setUp() throws Exception {
+        tmxFile = BenchmarkAssets.getFile(map);
+        tsxFile = BenchmarkAssets.getTsx(map.substring(0, map.indexOf('/')));
+        tmx = TiledTMX.getInstance(tmxFile);
+        tsx = TiledTSX.load(tsxFile);
+    }
+
+    @Benchmark
+    public TiledTMX readTmx() throws Exception {
+        return TiledTMX.getInstance(tmxFile);
+    }
+
+    @Benchmark
+    public String getCSV() {
+        return tmx.getCSV();
+    }
+
+    @Benchmark
+    public TiledTSX loadTsx() throws Exception {
+        return TiledTSX.load(tsxFile);
+    }
+
+    @Benchmark
+    public TiledTSX getCachedTsx() throws Exception {
+        return TiledTSX.getInstance(tsxFile);
+    }
+
+    @Benchmark
+    public BufferedImage render() {
+        return tmx.getBufferedImage(tsx, 0);
+    }
+}
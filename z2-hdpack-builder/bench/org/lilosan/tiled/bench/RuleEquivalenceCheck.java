@@ -0,0 +1,257 @@
+package org.lilosan.tiled.bench;
+
+import org.lilosan.tiled.TiledTMX;
+import org.lilosan.tiled.utils.*;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks that the rule processor gives the maps it gave when every rule was applied on its own, one after the other:
+ * random chains of replace and terrain rules run as a {@link RuleProgram}, on the pool of an area like with --threads,
+ * are compared with the rules applied in order to the whole maps, the terrain rules by the original neighbour checks.
+ * Runs on the maps of every area of original-assets and on small random maps, exits with 1 on a difference.
+ * It doesn't need JMH, the README shows how to build and run it, the argument is the seed of the rules.
+ */
+public class RuleEquivalenceCheck {
+
+    private static final int PROGRAMS_PER_AREA = 20;
+    private static final int RANDOM_MAPS = 2000;
+
+    private interface Rule {
+        int[] apply(int[] map, int width, int height, String mapName);
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seed = (args.length > 0) ? Long.parseLong(args[0]) : 0;
+        Random random = new Random(seed);
+        int checked = 0;
+        int differences = 0;
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (File areaDirectory:Objects.requireNonNull(BenchmarkAssets.getFile("").listFiles())) {
+                String area = areaDirectory.getName();
+                if (!BenchmarkAssets.getTsx(area).isFile() || BenchmarkAssets.getTmxs(area).isEmpty()) {
+                    continue;
+                }
+                for (int p = 0; p < PROGRAMS_PER_AREA; p++) {
+                    AreaRuleContext context = new AreaRuleContext(BenchmarkAssets.getTsx(area), BenchmarkAssets.getTmxs(area));
+                    context.setPool(pool);
+                    Map<File, TiledTMX> maps = new LinkedHashMap<>(context.getMaps());
+                    List<Rule> rules = new ArrayList<>();
+                    RuleProgram program = newProgram(random, context.getIdByMD5(), maps.values(), rules);
+
+                    program.run(context);
+                    context.takeLog();
+                    for (Map.Entry<File, TiledTMX> map:maps.entrySet()) {
+                        TiledTMX tmx = map.getValue();
+                        int[] expected = applyInOrder(rules, tmx.getData(), tmx.getWidth(), tmx.getHeight(), map.getKey().getName());
+                        checked++;
+                        if (!Arrays.equals(expected, context.getMaps().get(map.getKey()).getData())) {
+                            differences++;
+                            System.out.println("Difference: " + area + "/" + map.getKey().getName() + " with " + program.getRuleCount() + " rules");
+                        }
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        // Small maps, where most cells are on an edge
+        Map<String, Integer> idByMD5 = new HashMap<>();
+        for (int id = 0; id < 30; id++) {
+            idByMD5.put("md5-" + id, id);
+        }
+        for (int m = 0; m < RANDOM_MAPS; m++) {
+            int width = 1 + random.nextInt(20);
+            int height = 1 + random.nextInt(20);
+            TiledTMX map = new TiledTMX(1, "random", width, height, 8, 8);
+            for (int i = 0; i < map.getData().length; i++) {
+                map.getData()[i] = random.nextInt(8);
+            }
+            List<Rule> rules = new ArrayList<>();
+            RuleProgram program = newProgram(random, idByMD5, List.of(map), rules);
+            int[] output = new int[map.getData().length];
+            program.apply(map.getData(), output, width, height, "random-" + m);
+            checked++;
+            if (!Arrays.equals(applyInOrder(rules, map.getData(), width, height, "random-" + m), output)) {
+                differences++;
+                System.out.println("Difference: random map " + m + " with " + program.getRuleCount() + " rules");
+            }
+        }
+
+        System.out.println("Checked " + checked + " maps, " + differences + " differences");
+        if (differences > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static int[] applyInOrder(List<Rule> rules, int[] map, int width, int height, String mapName) {
+        int[] result = map;
+        for (Rule rule:rules) {
+            result = rule.apply(result, width, height, mapName);
+        }
+        return result;
+    }
+
+    /**
+     * A chain of up to 8 random rules on the ids of the maps, the same rules are added to the list one by one.
+     */
+    private static RuleProgram newProgram(Random random, Map<String, Integer> idByMD5, Collection<TiledTMX> maps, List<Rule> rules) {
+        // The most used ids, so the rules meet each other and the terrains have edges
+        Map<Integer, Integer> countById = new HashMap<>();
+        for (TiledTMX map:maps) {
+            for (int id:map.getData()) {
+                countById.merge(id, 1, Integer::sum);
+            }
+        }
+        List<Integer> ids = new ArrayList<>(countById.keySet());
+        ids.sort((a, b) -> countById.get(b) - countById.get(a));
+        ids = ids.subList(0, Math.min(ids.size(), 8));
+        Map<Integer, String> md5ById = new HashMap<>();
+        for (Map.Entry<String, Integer> tile:idByMD5.entrySet()) {
+            md5ById.put(tile.getValue(), tile.getKey());
+        }
+        int maxId = Collections.max(idByMD5.values());
+
+        RuleProgram program = new RuleProgram();
+        int ruleCount = 1 + random.nextInt(8);
+        for (int r = 0; r < ruleCount; r++) {
+            List<String> inputs = new ArrayList<>();
+            for (int i = 1 + random.nextInt(3); i > 0; i--) {
+                inputs.add(String.valueOf(ids.get(random.nextInt(ids.size()))));
+            }
+            if (random.nextInt(3) == 0) {
+                Map<String, List<String>> inputsToOutputs = new HashMap<>();
+                for (String input:inputs) {
+                    String md5 = md5ById.get(Integer.parseInt(input));
+                    if (md5 != null) {
+                        List<String> outputs = new ArrayList<>();
+                        for (int i = 0; i < 13; i++) {
+                            outputs.add(String.valueOf(random.nextInt(maxId + 1)));
+                        }
+                        inputsToOutputs.put(md5, outputs);
+                    }
+                }
+                program.addTerrain(new TerrainTable(idByMD5, inputsToOutputs));
+                rules.add(newTerrainReference(idByMD5, inputsToOutputs));
+            } else {
+                List<String> outputs = new ArrayList<>();
+                for (int i = 1 + random.nextInt(3); i > 0; i--) {
+                    outputs.add(String.valueOf(random.nextBoolean() ? ids.get(random.nextInt(ids.size())) : random.nextInt(maxId + 1)));
+                }
+                TiledRuleProcessor.PickType pick = random.nextBoolean() ? TiledRuleProcessor.PickType.cell : TiledRuleProcessor.PickType.rule;
+                long ruleSeed = random.nextInt(4);
+                // The same rule compiled twice, the program may merge its table with the previous one
+                program.addReplace(ReplaceRuleExecutor.compile(idByMD5, TiledRuleProcessor.InputOutputType.id, inputs, TiledRuleProcessor.InputOutputType.id, outputs, pick, ruleSeed));
+                ReplaceTable table = ReplaceRuleExecutor.compile(idByMD5, TiledRuleProcessor.InputOutputType.id, inputs, TiledRuleProcessor.InputOutputType.id, outputs, pick, ruleSeed);
+                rules.add((map, width, height, mapName) -> {
+                    int[] output = new int[map.length];
+                    table.apply(map, output, width, mapName);
+                    return output;
+                });
+            }
+        }
+        return program;
+    }
+
+    //
+    // Terrain rule as it was written before the lookup table of TerrainTable
+    //
+
+    private static Rule newTerrainReference(Map<String, Integer> idByMD5, Map<String, List<String>> inputsToOutputs) {
+        Set<Integer> terrain = new HashSet<>();
+        Map<Integer, int[]> outputsById = new HashMap<>();
+        for (Map.Entry<String, List<String>> input:inputsToOutputs.entrySet()) {
+            Integer id = idByMD5.get(input.getKey());
+            terrain.add(id);
+            int[] outputs = new int[13];
+            for (int i = 0; i < outputs.length; i++) {
+                outputs[i] = Integer.parseInt(input.getValue().get(i));
+            }
+            outputsById.put(id, outputs);
+        }
+        return (map, width, height, mapName) -> {
+            int[] output = new int[map.length];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int center = map[y * width + x];
+                    output[y * width + x] = (terrain.contains(center)) ? getTerrain(map, width, height, x, y, terrain, outputsById.get(center)) : center;
+                }
+            }
+            return output;
+        };
+    }
+
+    /**
+     * The outputs are the 3x3 terrain in rows, then the top-left, top-right, bottom-left and bottom-right corners.
+     */
+    private static int getTerrain(int[] map, int width, int height, int x, int y, Set<Integer> terrain, int[] outputs) {
+        Integer topLeft = get(map, width, height, x - 1, y - 1);
+        Integer top = get(map, width, height, x, y - 1);
+        Integer topRight = get(map, width, height, x + 1, y - 1);
+        Integer left = get(map, width, height, x - 1, y);
+        Integer right = get(map, width, height, x + 1, y);
+        Integer bottomLeft = get(map, width, height, x - 1, y + 1);
+        Integer bottom = get(map, width, height, x, y + 1);
+        Integer bottomRight = get(map, width, height, x + 1, y + 1);
+
+        int result = outputs[4];
+        if (isOther(left, terrain) && isOther(top, terrain) && isSameOrNone(right, terrain)) {
+            result = outputs[0];
+        }
+        if (isSameOrNone(left, terrain) && isOther(top, terrain) && isSameOrNone(right, terrain)) {
+            result = outputs[1];
+        }
+        if (isSameOrNone(left, terrain) && isOther(top, terrain) && isOther(right, terrain)) {
+            result = outputs[2];
+        }
+        if (isSameOrNone(top, terrain) && isOther(left, terrain) && isSameOrNone(bottom, terrain)) {
+            result = outputs[3];
+        }
+        if (isSameOrNone(top, terrain) && isOther(right, terrain) && isSameOrNone(bottom, terrain)) {
+            result = outputs[5];
+        }
+        if (isOther(left, terrain) && isOther(bottom, terrain) && isSameOrNone(right, terrain)) {
+            result = outputs[6];
+        }
+        if (isSameOrNone(left, terrain) && isOther(bottom, terrain) && isSameOrNone(right, terrain)) {
+            result = outputs[7];
+        }
+        if (isSameOrNone(left, terrain) && isOther(bottom, terrain) && isOther(right, terrain)) {
+            result = outputs[8];
+        }
+        if (isSame(bottom, terrain) && isSame(right, terrain) && !isSame(bottomRight, terrain)) {
+            result = outputs[9];
+        }
+        if (isSame(bottom, terrain) && isSame(left, terrain) && !isSame(bottomLeft, terrain)) {
+            result = outputs[10];
+        }
+        if (isSame(top, terrain) && isSame(right, terrain) && !isSame(topRight, terrain)) {
+            result = outputs[11];
+        }
+        if (isSame(top, terrain) && isSame(left, terrain) && !isSame(topLeft, terrain)) {
+            result = outputs[12];
+        }
+        return result;
+    }
+
+    private static Integer get(int[] map, int width, int height, int x, int y) {
+        return (x >= 0 && y >= 0 && x < width && y < height) ? map[y * width + x] : null;
+    }
+
+    private static boolean isSame(Integer id, Set<Integer> terrain) {
+        return id != null && terrain.contains(id);
+    }
+
+    private static boolean isOther(Integer id, Set<Integer> terrain) {
+        return id != null && !terrain.contains(id);
+    }
+
+    private static boolean isSameOrNone(Integer id, Set<Integer> terrain) {
+        return id == null || terrain.contains(id);
+    }
+}
@@ -0,0 +1,98 @@
+package org.lilosan.tiled.bench;
+
+import org.lilosan.tiled.TiledTMX;
+import org.lilosan.tiled.utils.AreaRuleContext;
+import org.lilosan.tiled.utils.ReplaceTable;
+import org.lilosan.tiled.utils.RuleProgram;
+import org.lilosan.tiled.utils.TerrainTable;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The rules of an area applied to its maps in memory, the way the rule processor runs them. The terrain is the
+ * most used tile of the area, so the rule has as many cells to check as a real one. The maps are only read.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TerrainRuleBenchmark {
+
+    @Param({"palace-1", "town-rauru"})
+    public String area;
+
+    private List<TiledTMX> maps;
+    private List<String> mapNames;
+    private List<int[]> outputs;
+    private RuleProgram terrainProgram;
+    private RuleProgram rulesProgram;
+
+    @Setup(Level.Trial)
+    public void setUpRules() throws Exception {
+        AreaRuleContext context = new AreaRuleContext(BenchmarkAssets.getTsx(area), BenchmarkAssets.getTmxs(area));
+        maps = new ArrayList<>();
+        mapNames = new ArrayList<>();
+        outputs = new ArrayList<>();
+        for (Map.Entry<File, TiledTMX> map:context.getMaps().entrySet()) {
+            maps.add(map.getValue());
+            mapNames.add(map.getKey().getName());
+            outputs.add(new int[map.getValue().getData().length]);
+        }
+
+        // The most used tile becomes the terrain, its 13 outputs are the tiles that follow it
+        Map<Integer, Integer> countById = new HashMap<>();
+        for (TiledTMX map:maps) {
+            for (int id:map.getData()) {
+                countById.merge(id, 1, Integer::sum);
+            }
+        }
+        int terrain = Collections.max(countById.entrySet(), Map.Entry.comparingByValue()).getKey();
+        String terrainMD5 = null;
+        for (Map.Entry<String, Integer> tile:context.getIdByMD5().entrySet()) {
+            if (tile.getValue() == terrain) {
+                terrainMD5 = tile.getKey();
+            }
+        }
+        List<String> terrainOutputs = new ArrayList<>();
+        for (int i = 1; i <= 13; i++) {
+            terrainOutputs.add(String.valueOf(terrain + i));
+        }
+        TerrainTable terrainTable = new TerrainTable(context.getIdByMD5(), Map.of(terrainMD5, terrainOutputs));
+
+        terrainProgram = new RuleProgram();
+        terrainProgram.addTerrain(terrainTable);
+
+        // Replace, terrain, then replace with a pick for every cell, like the rules of an area
+        ReplaceTable before = new ReplaceTable(0);
+        before.put(terrain + 1, terrain);
+        ReplaceTable after = new ReplaceTable(0);
+        after.putChoices(terrain + 7, new int[] {terrain + 7, terrain + 8});
+        rulesProgram = new RuleProgram();
+        rulesProgram.addReplace(before);
+        rulesProgram.addTerrain(terrainTable);
+        rulesProgram.addReplace(after);
+    }
+
+    @Benchmark
+    public List<int[]> terrain() {
+        return run(terrainProgram);
+    }
+
+    @Benchmark
+    public List<int[]> rules() {
+        return run(rulesProgram);
+    }
+
+    private List<int[]> run(RuleProgram program) {
+        for (int i = 0; i < maps.size(); i++) {
+            TiledTMX map = maps.get(i);
+            program.apply(map.getData(), outputs.get(i), map.getWidth(), map.getHeight(), mapNames.get(i));
+        }
+        return outputs;
+    }
+}
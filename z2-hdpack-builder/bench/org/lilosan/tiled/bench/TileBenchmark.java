@@ -0,0 +1,54 @@
+package org.lilosan.tiled.bench;
+
+import org.lilosan.tiled.Tile;
+import org.lilosan.tiled.TileFingerprint;
+import org.lilosan.tiled.TiledTSX;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing of the tiles of an area tileset, as done for every 8x8 or 16x16 cell by the extractor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TileBenchmark {
+
+    @Param({"palace-1", "town-rauru"})
+    public String area;
+
+    private BufferedImage[] images;
+
+    @Setup
+    public void setUp() throws Exception {
+        TiledTSX tsx = TiledTSX.load(BenchmarkAssets.getTsx(area));
+        images = new BufferedImage[tsx.size()];
+        for (int id = 0; id < images.length; id++) {
+            images[id] = tsx.getTile(id).getBufferedImage();
+        }
+    }
+
+    @Benchmark
+    public void fingerprint(Blackhole blackhole) {
+        for (BufferedImage image:images) {
+            blackhole.consume(TileFingerprint.of(image));
+        }
+    }
+
+    @Benchmark
+    public Set<Tile> uniqueTiles() throws Exception {
+        Set<Tile> tiles = new HashSet<>();
+        for (BufferedImage image:images) {
+            tiles.add(new Tile(image));
+        }
+        return tiles;
+    }
+}
@@ -0,0 +1,138 @@
+package org.lilosan.tiled;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * The maps the HD pack is built from: every area/map of the original assets, replaced by its copy in the
+ * custom assets when there is one, followed by the maps that only exist in the custom assets.
+ */
+public class AssetCatalog {
+
+    public static class Background {
+        private final String name;
+        private final String area;
+        private final File tmx;
+        private final File tsx;
+        private final File darkTsx;
+
+        public Background(String name, File tmx, File tsx, File darkTsx) {
+            this.name = name;
+            this.area = name.substring(0, name.indexOf('/'));
+            this.tmx = tmx;
+            this.tsx = tsx;
+            this.darkTsx = darkTsx;
+        }
+
+        /**
+         * Area directory and TMX file name, like "cave/01-1B.tmx".
+         */
+        public String getName() {
+            return name;
+        }
+
+        public String getArea() {
+            return area;
+        }
+
+        public File getTmx() {
+            return tmx;
+        }
+
+        public File getTsx(boolean dark) {
+            return dark ? darkTsx : tsx;
+        }
+
+        public boolean isCave() {
+            return area.equals("cave");
+        }
+
+        public String[] getLocationCodes() {
+            return getMapName().split("-")[0].split("\\|");
+        }
+
+        public String[] getMapCodes() {
+            return getMapName().split("-")[1].split("\\|");
+        }
+
+        private String getMapName() {
+            return name.substring(name.indexOf("/") + 1, name.indexOf(".tmx"));
+        }
+    }
+
+    private final List<Background> backgrounds;
+
+    public static AssetCatalog scan(String originalRoot, String customRoot) {
+        Map<String, Background> backgrounds = new LinkedHashMap<>();
+        for (String name:getMapBackgrounds(originalRoot)) {
+            String root = new File(customRoot, name).isFile() ? customRoot : originalRoot;
+            backgrounds.put(name, getBackground(name, root, originalRoot, customRoot));
+        }
+        for (String name:getMapBackgrounds(customRoot)) {
+            if (!backgrounds.containsKey(name)) {
+                backgrounds.put(name, getBackground(name, customRoot, originalRoot, customRoot));
+            }
+        }
+        return new AssetCatalog(new ArrayList<>(backgrounds.values()));
+    }
+
+    public AssetCatalog(List<Background> backgrounds) {
+        this.backgrounds = backgrounds;
+    }
+
+    public List<Background> getBackgrounds() {
+        return Collections.unmodifiableList(backgrounds);
+    }
+
+    public Set<String> getLocationCodes() {
+        Set<String> result = new HashSet<>();
+        for (Background background:backgrounds) {
+            result.addAll(Arrays.asList(background.getLocationCodes()));
+        }
+        return result;
+    }
+
+    public Set<String> getMapCodes() {
+        Set<String> result = new HashSet<>();
+        for (Background background:backgrounds) {
+            result.addAll(Arrays.asList(background.getMapCodes()));
+        }
+        return result;
+    }
+
+    /**
+     * Custom maps use the tileset of their own directory, or the original one if the area has no custom tileset.
+     */
+    private static Background getBackground(String name, String root, String originalRoot, String customRoot) {
+        String area = name.substring(0, name.indexOf('/'));
+        return new Background(name, new File(root, name),
+                getTileset(area, area + ".tsx", root, originalRoot, customRoot),
+                getTileset(area, area + "-dark.tsx", root, originalRoot, customRoot));
+    }
+
+    private static File getTileset(String area, String tsxName, String root, String originalRoot, String customRoot) {
+        File tsx = new File(root + "/" + area + "/" + tsxName);
+        if (root.equals(customRoot) && !tsx.isFile()) {
+            tsx = new File(originalRoot + "/" + area + "/" + tsxName);
+        }
+        return tsx;
+    }
+
+    private static List<String> getMapBackgrounds(String areasRoot) {
+        List<String> result = new ArrayList<>();
+        File[] areas = new File(areasRoot).listFiles();
+        if (areas == null) {
+            return result;
+        }
+        for (File area:areas) {
+            if (area.isDirectory()) {
+                for (File map : area.listFiles()) {
+                    if (map.getName().endsWith(".tmx") && !map.getName().equals(area.getName() + ".tmx") && !area.getName().equals("overworld")) {
+                        result.add(area.getName()  + "/" + map.getName());
+                    }
+                }
+            }
+        }
+        return result;
+    }
+}
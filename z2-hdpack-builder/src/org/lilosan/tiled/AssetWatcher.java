@@ -0,0 +1,65 @@
+package org.lilosan.tiled;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches a directory and all its subdirectories, changes are returned in bursts: once the files stop
+ * changing for {@link #DEBOUNCE_MILLIS}, like when an editor saves a map and its tileset.
+ */
+public class AssetWatcher implements Closeable {
+
+    public static final long DEBOUNCE_MILLIS = 300;
+
+    private final WatchService watchService;
+
+    public AssetWatcher(Path root) throws IOException {
+        this.watchService = root.getFileSystem().newWatchService();
+        register(root);
+    }
+
+    /**
+     * Waits for files to change, returns the changed files and directories.
+     */
+    public Set<Path> awaitChanges() throws InterruptedException, IOException {
+        Set<Path> changes = new LinkedHashSet<>();
+        WatchKey key = watchService.take();
+        while (key != null) {
+            Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event:key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    changes.add(directory);
+                    continue;
+                }
+                Path changed = directory.resolve((Path) event.context());
+                changes.add(changed);
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(changed)) {
+                    register(changed);
+                }
+            }
+            key.reset();
+            key = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return changes;
+    }
+
+    private void register(Path root) throws IOException {
+        try (Stream<Path> directories = Files.walk(root)) {
+            for (Path directory:(Iterable<Path>) directories.filter(Files::isDirectory)::iterator) {
+                directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -0,0 +1,40 @@
+package org.lilosan.tiled;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The backgrounds by their pixels, so that identical backgrounds are stored once.
+ * The shared file is the one of the first background with those pixels in the order of the catalog,
+ * whatever the order in which they are rendered.
+ */
+public class BackgroundRegistry {
+
+    private final Map<String, Integer> firstIndexByPixels;
+    private final Map<String, String> nameByPixels;
+
+    public BackgroundRegistry() {
+        this.firstIndexByPixels = new ConcurrentHashMap<>();
+        this.nameByPixels = new HashMap<>();
+    }
+
+    /**
+     * Registers the pixels of the background at the given position of the catalog, returns true if no
+     * background before it has been registered with the same pixels. Safe to call from the rendering threads.
+     */
+    public boolean claim(String pixelMD5, int index) {
+        return firstIndexByPixels.merge(pixelMD5, index, Math::min) == index;
+    }
+
+    /**
+     * Returns the file to use for the background, the backgrounds have to be given in the order of the catalog.
+     */
+    public String resolve(String pixelMD5, String name) {
+        return nameByPixels.computeIfAbsent(pixelMD5, pixels -> name);
+    }
+
+    public int size() {
+        return nameByPixels.size();
+    }
+}
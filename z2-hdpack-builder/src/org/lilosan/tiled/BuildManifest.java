@@ -0,0 +1,254 @@
+package org.lilosan.tiled;
+
+import java.awt.image.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent record of the inputs used to produce every generated HD pack background.
+ * Stored next to the generated assets, one line per output PNG:
+ * <pre>output-png encoder-settings tmx-md5 tsx-md5 tileset-png-md5 pixels-md5 output-png-md5</pre>
+ * A background with the same pixels as another one is not written, its output is {@link #SHARED}.
+ */
+public class BuildManifest {
+
+    public static final String NAME = "build-manifest.txt";
+    public static final String VERSION = "# z2-hdpack-builder manifest v3";
+    public static final String SHARED = "shared";
+    private static final int DIGEST_CHUNK = 16 * 1024;
+
+    public static class Entry {
+        private final String settings;
+        private final String tmxMD5;
+        private final String tsxMD5;
+        private final String pngMD5;
+        private final String pixelsMD5;
+        private final String outputMD5;
+
+        public Entry(String settings, String tmxMD5, String tsxMD5, String pngMD5, String pixelsMD5, String outputMD5) {
+            this.settings = settings;
+            this.tmxMD5 = tmxMD5;
+            this.tsxMD5 = tsxMD5;
+            this.pngMD5 = pngMD5;
+            this.pixelsMD5 = pixelsMD5;
+            this.outputMD5 = outputMD5;
+        }
+
+        public boolean hasSameInputs(Entry other) {
+            return settings.equals(other.settings) && tmxMD5.equals(other.tmxMD5) && tsxMD5.equals(other.tsxMD5) && pngMD5.equals(other.pngMD5);
+        }
+
+        public String getPixelsMD5() {
+            return pixelsMD5;
+        }
+
+        public String getOutputMD5() {
+            return outputMD5;
+        }
+
+        public boolean isShared() {
+            return SHARED.equals(outputMD5);
+        }
+
+        @Override
+        public String toString() {
+            return settings + " " + tmxMD5 + " " + tsxMD5 + " " + pngMD5 + " " + pixelsMD5 + " " + outputMD5;
+        }
+    }
+
+    private final Path file;
+    private final Map<String, Entry> entries;
+    private final Map<Path, String> md5ByFile;
+
+    public static BuildManifest load(String hdpackRoot) throws IOException {
+        BuildManifest manifest = new BuildManifest(Path.of(hdpackRoot, NAME));
+        if (Files.exists(manifest.file)) {
+            List<String> lines = Files.readAllLines(manifest.file, StandardCharsets.UTF_8);
+            if (!lines.isEmpty() && lines.get(0).equals(VERSION)) {
+                for (String line:lines.subList(1, lines.size())) {
+                    // The output name may contain any character but spaces, the hashes are fixed hex strings
+                    String[] fields = line.split(" ");
+                    if (fields.length == 7) {
+                        manifest.entries.put(fields[0], new Entry(fields[1], fields[2], fields[3], fields[4], fields[5], fields[6]));
+                    }
+                }
+            }
+        }
+        return manifest;
+    }
+
+    public BuildManifest(Path file) {
+        this.file = file;
+        this.entries = new ConcurrentHashMap<>();
+        this.md5ByFile = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Hashes the inputs a background is rendered from, each file is hashed once per build.
+     * The settings are the options that change the written bytes, without spaces.
+     * Safe to call from the threads rendering the backgrounds.
+     */
+    public Entry getInputs(String settings, Path tmx, Path tsx, Path png) throws IOException {
+        return new Entry(settings, getMD5(tmx), getMD5(tsx), getMD5(png), null, null);
+    }
+
+    public Entry getEntry(String output) {
+        return entries.get(output);
+    }
+
+    /**
+     * A background is up-to-date when it was produced from the same inputs and the output on disk
+     * has not been touched since, or was not written because another background has the same pixels.
+     */
+    public boolean isUpToDate(String output, Entry inputs, Path outputFile) throws IOException {
+        Entry entry = entries.get(output);
+        if (entry == null || !entry.hasSameInputs(inputs)) {
+            return false;
+        }
+        if (entry.isShared()) {
+            return true;
+        }
+        return Files.exists(outputFile) && entry.getOutputMD5().equals(getMD5(outputFile));
+    }
+
+    public void update(String output, Entry inputs, String pixelsMD5, String outputMD5) {
+        entries.put(output, new Entry(inputs.settings, inputs.tmxMD5, inputs.tsxMD5, inputs.pngMD5, pixelsMD5, outputMD5));
+    }
+
+    /**
+     * Forgets the hash of a file that changed, or of all the files of a directory.
+     */
+    public void invalidate(Path path) {
+        Path key = path.toAbsolutePath().normalize();
+        md5ByFile.keySet().removeIf(file -> file.startsWith(key));
+    }
+
+    public void save() throws IOException {
+        StringBuilder manifest = new StringBuilder(VERSION).append("\n");
+        for (String output:new TreeSet<>(entries.keySet())) {
+            manifest.append(output).append(" ").append(entries.get(output)).append("\n");
+        }
+        Path temporary = file.resolveSibling(NAME + ".tmp");
+        Files.write(temporary, manifest.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private String getMD5(Path path) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        String md5 = md5ByFile.get(key);
+        if (md5 == null) {
+            md5 = toHex(newMD5().digest(Files.readAllBytes(key)));
+            md5ByFile.put(key, md5);
+        }
+        return md5;
+    }
+
+    //
+    // Utility methods shared with the writers of the outputs
+    //
+
+    public static MessageDigest newMD5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * MD5 of the pixels of an image, with its palette if it has one, whatever the way it is encoded.
+     * The rendered images are digested straight from their data buffer, other layouts are read row by row.
+     */
+    public static String getPixelsMD5(BufferedImage image) {
+        MessageDigest md5 = newMD5();
+        ByteBuffer header = ByteBuffer.allocate(8).putInt(image.getWidth()).putInt(image.getHeight());
+        md5.update(header.array());
+        int width = image.getWidth();
+        int height = image.getHeight();
+        WritableRaster raster = image.getRaster();
+        SampleModel sampleModel = raster.getSampleModel();
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        int offsetX = -raster.getSampleModelTranslateX();
+        int offsetY = -raster.getSampleModelTranslateY();
+        if (IndexedImages.isIndexed(image)) {
+            IndexColorModel colorModel = (IndexColorModel) image.getColorModel();
+            int[] palette = new int[colorModel.getMapSize()];
+            colorModel.getRGBs(palette);
+            updateMD5(md5, palette, 0, palette.length);
+            ComponentSampleModel components = (ComponentSampleModel) sampleModel;
+            if (dataBuffer instanceof DataBufferByte && dataBuffer.getNumBanks() == 1 && components.getPixelStride() == 1) {
+                // One byte per pixel, the rows are digested from the buffer, at once when they follow each other
+                byte[] data = ((DataBufferByte) dataBuffer).getData();
+                int stride = components.getScanlineStride();
+                int index = dataBuffer.getOffset() + components.getOffset(offsetX, offsetY);
+                if (stride == width) {
+                    md5.update(data, index, width * height);
+                } else {
+                    for (int y = 0; y < height; y++, index += stride) {
+                        md5.update(data, index, width);
+                    }
+                }
+            } else {
+                byte[] row = new byte[width];
+                for (int y = 0; y < height; y++) {
+                    raster.getDataElements(0, y, width, 1, row);
+                    md5.update(row);
+                }
+            }
+        } else if (image.getType() == BufferedImage.TYPE_INT_ARGB && sampleModel instanceof SinglePixelPackedSampleModel && dataBuffer instanceof DataBufferInt) {
+            // The ints of the buffer are the ARGB values getRGB() would return
+            SinglePixelPackedSampleModel packed = (SinglePixelPackedSampleModel) sampleModel;
+            int[] data = ((DataBufferInt) dataBuffer).getData();
+            int stride = packed.getScanlineStride();
+            int index = dataBuffer.getOffset() + packed.getOffset(offsetX, offsetY);
+            if (stride == width) {
+                updateMD5(md5, data, index, width * height);
+            } else {
+                for (int y = 0; y < height; y++, index += stride) {
+                    updateMD5(md5, data, index, width);
+                }
+            }
+        } else {
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                updateMD5(md5, row, 0, width);
+            }
+        }
+        return toHex(md5.digest());
+    }
+
+    /**
+     * Digests the values as big-endian ints, through a buffer of at most {@link #DIGEST_CHUNK} values.
+     */
+    private static void updateMD5(MessageDigest md5, int[] values, int offset, int length) {
+        ByteBuffer bytes = ByteBuffer.allocate(Math.min(length, DIGEST_CHUNK) * 4);
+        IntBuffer ints = bytes.asIntBuffer();
+        for (int start = offset; start < offset + length; start += DIGEST_CHUNK) {
+            int count = Math.min(DIGEST_CHUNK, offset + length - start);
+            ints.clear();
+            ints.put(values, start, count);
+            md5.update(bytes.array(), 0, count * 4);
+        }
+    }
+
+    public static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < digest.length; i++) {
+            if ((0xff & digest[i]) < 0x10) {
+                sb.append('0');
+            }
+            sb.append(Integer.toHexString(0xff & digest[i]));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,222 @@
+package org.lilosan.tiled;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time spent in every phase of a build and counts of the work done, totalled per area.
+ * The phases don't overlap, so their times add up to the time of the build spent in them.
+ * The area of the recorded work is the one set on the current thread, so rendering threads
+ * record into the area of the background they render.
+ */
+public class BuildMetrics {
+
+    public static final String NO_AREA = "build";
+
+    public enum Phase {
+        XML_PARSE("xml-parse"),
+        TILESET_DECODE("tileset-decode"),
+        RENDER("render"),
+        PIXELS_HASH("pixels-hash"),
+        PNG_ENCODE("png-encode"),
+        TMX_WRITE("tmx-write"),
+        FILE_COPY("file-copy"),
+        ORDER_RULE("order-rule"),
+        RULE_PASS("rule-pass");
+
+        private final String key;
+
+        Phase(String key) {
+            this.key = key;
+        }
+    }
+
+    public enum Counter {
+        MAPS_PROCESSED("maps-processed"),
+        TILES_BLITTED("tiles-blitted"),
+        BYTES_WRITTEN("bytes-written"),
+        CACHE_HITS("cache-hits"),
+        CACHE_MISSES("cache-misses"),
+        UP_TO_DATE("up-to-date");
+
+        private final String key;
+
+        Counter(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final BuildMetrics SHARED = new BuildMetrics();
+    private static final ThreadLocal<String> AREA = ThreadLocal.withInitial(() -> NO_AREA);
+
+    private static class Totals {
+        private final LongAdder[] nanos = newAdders(Phase.values().length);
+        private final LongAdder[] calls = newAdders(Phase.values().length);
+        private final LongAdder[] counts = newAdders(Counter.values().length);
+
+        private static LongAdder[] newAdders(int size) {
+            LongAdder[] adders = new LongAdder[size];
+            for (int i = 0; i < size; i++) {
+                adders[i] = new LongAdder();
+            }
+            return adders;
+        }
+    }
+
+    private final Map<String, Totals> totalsByArea;
+    private volatile long startNanos;
+
+    public static BuildMetrics getShared() {
+        return SHARED;
+    }
+
+    public BuildMetrics() {
+        this.totalsByArea = new ConcurrentHashMap<>();
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Sets the area the work of the current thread is recorded into.
+     */
+    public static void setArea(String area) {
+        AREA.set((area != null) ? area : NO_AREA);
+    }
+
+    public static String getArea() {
+        return AREA.get();
+    }
+
+    /**
+     * Returns the start time of a phase, to be given to {@link #stop(Phase, long)}.
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    public void stop(Phase phase, long start) {
+        Totals totals = getTotals();
+        totals.nanos[phase.ordinal()].add(System.nanoTime() - start);
+        totals.calls[phase.ordinal()].increment();
+    }
+
+    public void add(Counter counter, long amount) {
+        getTotals().counts[counter.ordinal()].add(amount);
+    }
+
+    public void increment(Counter counter) {
+        add(counter, 1);
+    }
+
+    /**
+     * Forgets everything recorded, for the next build of a watch session.
+     */
+    public void reset() {
+        totalsByArea.clear();
+        startNanos = System.nanoTime();
+    }
+
+    private Totals getTotals() {
+        return totalsByArea.computeIfAbsent(AREA.get(), area -> new Totals());
+    }
+
+    //
+    // Report
+    //
+
+    /**
+     * Writes the totals of the build and of each area as JSON.
+     */
+    public void writeReport(Path file) throws IOException {
+        Map<String, Totals> areas = new TreeMap<>(totalsByArea);
+        long[] nanos = new long[Phase.values().length];
+        long[] calls = new long[Phase.values().length];
+        long[] counts = new long[Counter.values().length];
+        for (Totals totals:areas.values()) {
+            for (int i = 0; i < nanos.length; i++) {
+                nanos[i] += totals.nanos[i].sum();
+                calls[i] += totals.calls[i].sum();
+            }
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += totals.counts[i].sum();
+            }
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"elapsed-ms\": ").append(toMillis(System.nanoTime() - startNanos)).append(",\n");
+        appendTotals(json, "  ", nanos, calls, counts);
+        json.append(",\n  \"areas\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Totals> area:areas.entrySet()) {
+            Totals totals = area.getValue();
+            long[] areaNanos = new long[nanos.length];
+            long[] areaCalls = new long[calls.length];
+            long[] areaCounts = new long[counts.length];
+            for (int i = 0; i < nanos.length; i++) {
+                areaNanos[i] = totals.nanos[i].sum();
+                areaCalls[i] = totals.calls[i].sum();
+            }
+            for (int i = 0; i < counts.length; i++) {
+                areaCounts[i] = totals.counts[i].sum();
+            }
+            json.append(separator).append("    ").append(quote(area.getKey())).append(": {\n");
+            appendTotals(json, "      ", areaNanos, areaCalls, areaCounts);
+            json.append("\n    }");
+            separator = ",\n";
+        }
+        json.append("\n  }\n}\n");
+
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write(json.toString());
+        }
+    }
+
+    private static void appendTotals(StringBuilder json, String indent, long[] nanos, long[] calls, long[] counts) {
+        json.append(indent).append("\"phases\": {");
+        String separator = "\n";
+        for (Phase phase:Phase.values()) {
+            int i = phase.ordinal();
+            if (calls[i] > 0) {
+                json.append(separator).append(indent).append("  ").append(quote(phase.key))
+                        .append(": {\"ms\": ").append(toMillis(nanos[i])).append(", \"calls\": ").append(calls[i]).append("}");
+                separator = ",\n";
+            }
+        }
+        json.append("\n").append(indent).append("},\n");
+        json.append(indent).append("\"counters\": {");
+        separator = "\n";
+        for (Counter counter:Counter.values()) {
+            json.append(separator).append(indent).append("  ").append(quote(counter.key)).append(": ").append(counts[counter.ordinal()]);
+            separator = ",\n";
+        }
+        json.append("\n").append(indent).append("}");
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1_000_000.0);
+    }
+
+    private static String quote(String text) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c:text.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < ' ') {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,145 @@
+package org.lilosan.tiled;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.util.Arrays;
+
+/**
+ * Tiled CSV layer data, one row of comma separated tile ids per line.
+ */
+public class CsvCodec {
+
+    /**
+     * Decodes the tile ids as the characters arrive, the text can be given in chunks of any size
+     * so it can be fed straight from the XML parser buffers.
+     */
+    public static class Decoder {
+        private int[] values;
+        private int size;
+        private int value; // Kept negative like Integer.parseInt, so Integer.MIN_VALUE fits
+        private boolean inValue;
+        private boolean negative;
+        private int width;
+
+        public Decoder() {
+            this.values = new int[1024];
+            this.width = -1;
+        }
+
+        public void decode(char[] chars, int start, int length) {
+            for (int i = start; i < start + length; i++) {
+                char c = chars[i];
+                if (c >= '0' && c <= '9') {
+                    int digit = c - '0';
+                    int limit = (negative) ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+                    if (value < (limit + digit) / 10) {
+                        throw new NumberFormatException("Tile id out of range in CSV data");
+                    }
+                    value = value * 10 - digit;
+                    inValue = true;
+                } else if (c == '-' && !inValue && !negative) {
+                    negative = true;
+                } else if (c == ',' || c == '\n' || c == '\r' || c == ' ' || c == '\t') {
+                    endValue();
+                    if (c == '\n' && width < 0 && size > 0) { // The first line gives the width of the layer
+                        width = size;
+                    }
+                } else {
+                    throw new NumberFormatException("Invalid character in CSV data: '" + c + "'");
+                }
+            }
+        }
+
+        private void endValue() {
+            if (negative && !inValue) {
+                throw new NumberFormatException("Invalid character in CSV data: '-'");
+            }
+            if (inValue) {
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, size * 2);
+                }
+                values[size++] = (negative) ? value : -value;
+                value = 0;
+                inValue = false;
+                negative = false;
+            }
+        }
+
+        /**
+         * Returns the tile ids in row-major order.
+         */
+        public int[] finish() {
+            endValue();
+            if (width < 0) {
+                width = size;
+            }
+            if (size == 0 || size % width != 0) {
+                throw new NumberFormatException("CSV data is not a rectangle: " + size + " values, " + width + " per line");
+            }
+            return (size == values.length) ? values : Arrays.copyOf(values, size);
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return size / width;
+        }
+    }
+
+    /**
+     * Writes the tile ids in row-major order the way Tiled does, every line but the last one ends with a comma.
+     */
+    public static void write(int[] data, int width, int height, XMLStreamWriter out) throws XMLStreamException {
+        char[] line = new char[getMaxLineLength(width)];
+        for (int y = 0; y < height; y++) {
+            out.writeCharacters(line, 0, encodeLine(data, y * width, width, y == height - 1, line));
+        }
+    }
+
+    public static String toString(int[] data, int width, int height) {
+        char[] line = new char[getMaxLineLength(width)];
+        StringBuilder csv = new StringBuilder(height * line.length / 2);
+        for (int y = 0; y < height; y++) {
+            csv.append(line, 0, encodeLine(data, y * width, width, y == height - 1, line));
+        }
+        return csv.toString();
+    }
+
+    private static int getMaxLineLength(int width) {
+        return width * 12 + 2; // Sign, ten digits and a comma per value, plus the end of line
+    }
+
+    private static int encodeLine(int[] data, int offset, int width, boolean lastLine, char[] line) {
+        int length = 0;
+        for (int x = 0; x < width; x++) {
+            if (x > 0) {
+                line[length++] = ',';
+            }
+            length = encodeValue(data[offset + x], line, length);
+        }
+        if (!lastLine) {
+            line[length++] = ',';
+        }
+        line[length++] = '\n';
+        return length;
+    }
+
+    private static int encodeValue(int value, char[] line, int start) {
+        long remaining = value; // long so that Integer.MIN_VALUE can be negated
+        if (remaining < 0) {
+            line[start++] = '-';
+            remaining = -remaining;
+        }
+        int digits = 1;
+        for (long limit = 10; limit <= remaining; limit *= 10) {
+            digits++;
+        }
+        for (int i = start + digits - 1; i >= start; i--) {
+            line[i] = (char) ('0' + (remaining % 10));
+            remaining /= 10;
+        }
+        return start + digits;
+    }
+}
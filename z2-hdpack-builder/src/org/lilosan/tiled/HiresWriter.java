@@ -0,0 +1,96 @@
+package org.lilosan.tiled;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes hires.txt as its sections are produced. The text goes to hires.txt.partial and is only renamed
+ * to hires.txt by {@link #commit()}, a build that fails leaves the partial file with a note at its end.
+ */
+public class HiresWriter implements Closeable {
+
+    public static final String PARTIAL_SUFFIX = ".partial";
+
+    private final Path file;
+    private final Path partialFile;
+    private final FileChannel channel;
+    private final Writer writer;
+    private boolean closed;
+
+    public static HiresWriter open(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        return new HiresWriter(file);
+    }
+
+    private HiresWriter(Path file) throws IOException {
+        this.file = file;
+        this.partialFile = file.resolveSibling(file.getFileName() + PARTIAL_SUFFIX);
+        this.channel = FileChannel.open(partialFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        this.writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    public HiresWriter append(CharSequence text) throws IOException {
+        writer.append(text);
+        return this;
+    }
+
+    public HiresWriter append(Object value) throws IOException {
+        return append(String.valueOf(value));
+    }
+
+    /**
+     * Copies a UTF-8 fragment as it is, from file to file without decoding it.
+     */
+    public HiresWriter appendFile(Path fragment) throws IOException {
+        BuildMetrics metrics = BuildMetrics.getShared();
+        long start = metrics.start();
+        writer.flush();
+        try (FileChannel in = FileChannel.open(fragment, StandardOpenOption.READ)) {
+            long size = in.size();
+            for (long position = 0; position < size; ) {
+                position += in.transferTo(position, size - position, channel);
+            }
+        }
+        metrics.stop(BuildMetrics.Phase.FILE_COPY, start);
+        return this;
+    }
+
+    /**
+     * Completes the file and replaces the previous hires.txt with it.
+     */
+    public void commit() throws IOException {
+        close();
+        BuildMetrics.getShared().add(BuildMetrics.Counter.BYTES_WRITTEN, Files.size(partialFile));
+        Files.move(partialFile, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Ends the partial file with the reason of the failure, the previous hires.txt is left as it was.
+     */
+    public void fail(Throwable cause) {
+        try {
+            writer.append("\n# INCOMPLETE: the build failed, ").append(String.valueOf(cause).replace('\n', ' ')).append("\n");
+            close();
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+        }
+        System.err.println("Partial output left in: " + partialFile);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            writer.close();
+        }
+    }
+}
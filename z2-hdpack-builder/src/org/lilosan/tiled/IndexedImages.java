@@ -0,0 +1,84 @@
+package org.lilosan.tiled;
+
+import java.awt.image.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Palette images for the NES tiles, one byte per pixel instead of four.
+ * Index 0 is always the fully transparent colour so a new image starts transparent, like an ARGB one.
+ */
+public class IndexedImages {
+
+    public static final int MAX_COLORS = 256;
+
+    public static boolean isIndexed(BufferedImage image) {
+        return image.getColorModel() instanceof IndexColorModel
+                && image.getRaster().getNumBands() == 1
+                && image.getRaster().getTransferType() == DataBuffer.TYPE_BYTE
+                && image.getSampleModel() instanceof ComponentSampleModel;
+    }
+
+    /**
+     * Converts the image to a palette image, or returns null when it has more than {@link #MAX_COLORS} colours.
+     * The conversion is lossless, colours are kept with their exact alpha.
+     */
+    public static BufferedImage toIndexed(BufferedImage image) {
+        if (isIndexed(image) && ((IndexColorModel) image.getColorModel()).getRGB(0) == 0) {
+            return image;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+
+        Map<Integer, Integer> indexByColor = new HashMap<>();
+        int[] colors = new int[MAX_COLORS];
+        indexByColor.put(0, 0);
+        int size = 1;
+        byte[] indices = new byte[argb.length];
+        for (int i = 0; i < argb.length; i++) {
+            Integer index = indexByColor.get(argb[i]);
+            if (index == null) {
+                if (size == MAX_COLORS) {
+                    return null;
+                }
+                index = size;
+                colors[size++] = argb[i];
+                indexByColor.put(argb[i], index);
+            }
+            indices[i] = (byte) (int) index;
+        }
+
+        BufferedImage indexed = create(getColorModel(colors, size), width, height);
+        indexed.getRaster().setDataElements(0, 0, width, height, indices);
+        return indexed;
+    }
+
+    public static BufferedImage create(IndexColorModel colorModel, int width, int height) {
+        return new BufferedImage(colorModel, colorModel.createCompatibleWritableRaster(width, height), false, null);
+    }
+
+    /**
+     * A transparent image that can hold the pixels of the given one: the same palette, or ARGB.
+     */
+    public static BufferedImage createCompatible(BufferedImage image, int width, int height) {
+        if (isIndexed(image)) {
+            return create((IndexColorModel) image.getColorModel(), width, height);
+        }
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    private static IndexColorModel getColorModel(int[] colors, int size) {
+        byte[] reds = new byte[size];
+        byte[] greens = new byte[size];
+        byte[] blues = new byte[size];
+        byte[] alphas = new byte[size];
+        for (int i = 0; i < size; i++) {
+            reds[i] = (byte) (colors[i] >>> 16);
+            greens[i] = (byte) (colors[i] >>> 8);
+            blues[i] = (byte) colors[i];
+            alphas[i] = (byte) (colors[i] >>> 24);
+        }
+        return new IndexColorModel(8, size, reds, greens, blues, alphas);
+    }
+}
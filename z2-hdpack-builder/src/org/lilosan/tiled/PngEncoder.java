@@ -0,0 +1,356 @@
+package org.lilosan.tiled;
+
+import java.awt.image.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PNG writer for the HD pack images, faster than ImageIO and with a selectable compression level and row filter.
+ * Palette images (see {@link IndexedImages}) are written with a palette, anything else as 8 bit RGBA.
+ * Large images are split in segments that are filtered and deflated in parallel, each segment is primed with
+ * the end of the previous one so the result is a single zlib stream almost as small as a sequential one.
+ */
+public class PngEncoder {
+
+    public enum Filter {
+        NONE(0), SUB(1), UP(2), AVERAGE(3), PAETH(4), ADAPTIVE(-1);
+
+        private final int type;
+
+        Filter(int type) {
+            this.type = type;
+        }
+    }
+
+    public enum Mode {
+        FAST(1, Filter.UP), DEFAULT(6, Filter.UP), MAX(9, Filter.ADAPTIVE);
+
+        private final int level;
+        private final Filter filter;
+
+        Mode(int level, Filter filter) {
+            this.level = level;
+            this.filter = filter;
+        }
+    }
+
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+    private static final int SEGMENT_SIZE = 256 * 1024;
+    private static final int WINDOW_SIZE = 32 * 1024;
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+    private final int level;
+    private final Filter filter;
+    private final boolean parallel;
+
+    public static PngEncoder forMode(String mode) {
+        Mode preset = Mode.valueOf(mode.toUpperCase());
+        return new PngEncoder(preset.level, preset.filter, true);
+    }
+
+    public PngEncoder(int level, Filter filter, boolean parallel) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("PNG compression level must be between 0 and 9");
+        }
+        this.level = level;
+        this.filter = filter;
+        this.parallel = parallel;
+    }
+
+    public PngEncoder withLevel(int level) {
+        return new PngEncoder(level, filter, parallel);
+    }
+
+    public PngEncoder withFilter(Filter filter) {
+        return new PngEncoder(level, filter, parallel);
+    }
+
+    public PngEncoder withParallel(boolean parallel) {
+        return new PngEncoder(level, filter, parallel);
+    }
+
+    public void write(BufferedImage image, OutputStream out) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean indexed = IndexedImages.isIndexed(image);
+        int bytesPerPixel = indexed ? 1 : 4;
+        int rowBytes = width * bytesPerPixel;
+        byte[] filtered = new byte[height * (rowBytes + 1)];
+
+        // Filter rows, each group of rows is independent
+        int rowsPerGroup = Math.max(1, SEGMENT_SIZE / (rowBytes + 1));
+        List<ForkJoinTask<?>> filterTasks = new ArrayList<>();
+        for (int y = 0; y < height; y += rowsPerGroup) {
+            int firstRow = y;
+            int lastRow = Math.min(height, y + rowsPerGroup);
+            filterTasks.add(ForkJoinTask.adapt(() -> filterRows(image, firstRow, lastRow, bytesPerPixel, filtered)));
+        }
+        run(filterTasks);
+
+        // Deflate segments, the checksum is for the whole stream
+        int segments = parallel ? (filtered.length + SEGMENT_SIZE - 1) / SEGMENT_SIZE : 1;
+        int segmentSize = (filtered.length + segments - 1) / segments;
+        byte[][] compressed = new byte[segments][];
+        List<ForkJoinTask<?>> deflateTasks = new ArrayList<>();
+        for (int i = 0; i < segments; i++) {
+            int segment = i;
+            deflateTasks.add(ForkJoinTask.adapt(() -> {
+                int start = segment * segmentSize;
+                int end = Math.min(filtered.length, start + segmentSize);
+                compressed[segment] = deflate(filtered, start, end, end == filtered.length);
+            }));
+        }
+        run(deflateTasks);
+        Adler32 adler32 = new Adler32();
+        adler32.update(filtered, 0, filtered.length);
+
+        out.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8; // Bit depth
+        header[9] = (byte) (indexed ? 3 : 6); // Indexed colour or truecolor with alpha
+        writeChunk(out, "IHDR", header, 0, header.length);
+        if (indexed) {
+            writePalette(out, (IndexColorModel) image.getColorModel());
+        }
+
+        ByteArrayOutputStream zlib = new ByteArrayOutputStream(filtered.length / 4);
+        zlib.write(0x78);
+        zlib.write(getZlibFlags());
+        for (byte[] segment:compressed) {
+            zlib.write(segment);
+        }
+        byte[] checksum = new byte[4];
+        putInt(checksum, 0, (int) adler32.getValue());
+        zlib.write(checksum);
+        byte[] data = zlib.toByteArray();
+        for (int offset = 0; offset < data.length; offset += MAX_CHUNK_SIZE) {
+            writeChunk(out, "IDAT", data, offset, Math.min(MAX_CHUNK_SIZE, data.length - offset));
+        }
+        writeChunk(out, "IEND", data, 0, 0);
+        out.flush();
+    }
+
+    /**
+     * The settings that change the encoded bytes, to know when an existing output was written differently.
+     */
+    @Override
+    public String toString() {
+        return "png-level-" + level + "-" + filter.name().toLowerCase() + (parallel ? "-parallel" : "");
+    }
+
+    private void run(List<ForkJoinTask<?>> tasks) {
+        if (parallel && tasks.size() > 1) {
+            ForkJoinTask.invokeAll(tasks); // Runs in the pool of the calling thread if there is one
+        } else {
+            for (ForkJoinTask<?> task:tasks) {
+                task.invoke();
+            }
+        }
+    }
+
+    //
+    // Row filters
+    //
+
+    private void filterRows(BufferedImage image, int firstRow, int lastRow, int bytesPerPixel, byte[] filtered) {
+        int rowBytes = image.getWidth() * bytesPerPixel;
+        byte[] previous = new byte[rowBytes];
+        byte[] current = new byte[rowBytes];
+        byte[][] candidates = (filter == Filter.ADAPTIVE) ? new byte[5][rowBytes] : null;
+        int[] argb = new int[image.getWidth()];
+        if (firstRow > 0) {
+            getRow(image, firstRow - 1, argb, previous);
+        }
+        for (int y = firstRow; y < lastRow; y++) {
+            getRow(image, y, argb, current);
+            int offset = y * (rowBytes + 1);
+            if (filter == Filter.ADAPTIVE) {
+                // Keep the filter with the lowest sum of absolute differences, as recommended by the PNG specification
+                int best = 0;
+                long bestSum = Long.MAX_VALUE;
+                for (int type = 0; type < 5; type++) {
+                    filterRow(type, current, previous, bytesPerPixel, candidates[type], 0);
+                    long sum = 0;
+                    for (byte value:candidates[type]) {
+                        sum += Math.abs(value);
+                    }
+                    if (sum < bestSum) {
+                        bestSum = sum;
+                        best = type;
+                    }
+                }
+                filtered[offset] = (byte) best;
+                System.arraycopy(candidates[best], 0, filtered, offset + 1, rowBytes);
+            } else {
+                filtered[offset] = (byte) filter.type;
+                filterRow(filter.type, current, previous, bytesPerPixel, filtered, offset + 1);
+            }
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+    }
+
+    private static void filterRow(int type, byte[] row, byte[] previous, int bpp, byte[] out, int offset) {
+        int length = row.length;
+        switch (type) {
+            case 0:
+                System.arraycopy(row, 0, out, offset, length);
+                break;
+            case 1:
+                for (int i = 0; i < length; i++) {
+                    int left = (i >= bpp) ? row[i - bpp] & 0xff : 0;
+                    out[offset + i] = (byte) (row[i] - left);
+                }
+                break;
+            case 2:
+                for (int i = 0; i < length; i++) {
+                    out[offset + i] = (byte) (row[i] - previous[i]);
+                }
+                break;
+            case 3:
+                for (int i = 0; i < length; i++) {
+                    int left = (i >= bpp) ? row[i - bpp] & 0xff : 0;
+                    out[offset + i] = (byte) (row[i] - ((left + (previous[i] & 0xff)) >>> 1));
+                }
+                break;
+            case 4:
+                for (int i = 0; i < length; i++) {
+                    int left = (i >= bpp) ? row[i - bpp] & 0xff : 0;
+                    int up = previous[i] & 0xff;
+                    int upLeft = (i >= bpp) ? previous[i - bpp] & 0xff : 0;
+                    out[offset + i] = (byte) (row[i] - paeth(left, up, upLeft));
+                }
+                break;
+        }
+    }
+
+    private static int paeth(int left, int up, int upLeft) {
+        int estimate = left + up - upLeft;
+        int distanceLeft = Math.abs(estimate - left);
+        int distanceUp = Math.abs(estimate - up);
+        int distanceUpLeft = Math.abs(estimate - upLeft);
+        if (distanceLeft <= distanceUp && distanceLeft <= distanceUpLeft) {
+            return left;
+        }
+        return (distanceUp <= distanceUpLeft) ? up : upLeft;
+    }
+
+    /**
+     * Reads a row as RGBA bytes, straight from the data buffer for the usual ARGB images.
+     */
+    private static void getRow(BufferedImage image, int y, int[] argb, byte[] row) {
+        WritableRaster raster = image.getRaster();
+        int width = image.getWidth();
+        if (IndexedImages.isIndexed(image)) {
+            raster.getDataElements(raster.getMinX(), raster.getMinY() + y, width, 1, row);
+            return;
+        }
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB && raster.getDataBuffer() instanceof DataBufferInt) {
+            SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            int start = raster.getDataBuffer().getOffset() + (y - raster.getSampleModelTranslateY()) * sampleModel.getScanlineStride() - raster.getSampleModelTranslateX();
+            System.arraycopy(((DataBufferInt) raster.getDataBuffer()).getData(), start, argb, 0, width);
+        } else {
+            image.getRGB(0, y, width, 1, argb, 0, width);
+        }
+        for (int x = 0, i = 0; x < width; x++) {
+            int pixel = argb[x];
+            row[i++] = (byte) (pixel >>> 16);
+            row[i++] = (byte) (pixel >>> 8);
+            row[i++] = (byte) pixel;
+            row[i++] = (byte) (pixel >>> 24);
+        }
+    }
+
+    //
+    // Compression
+    //
+
+    private byte[] deflate(byte[] data, int start, int end, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (start > 0) {
+                // Let the segment refer to the end of the previous one, like a sequential stream would
+                int dictionaryStart = Math.max(0, start - WINDOW_SIZE);
+                deflater.setDictionary(data, dictionaryStart, start - dictionaryStart);
+            }
+            deflater.setInput(data, start, end - start);
+            if (last) {
+                deflater.finish();
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream((end - start) / 4 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            while (true) {
+                int length = deflater.deflate(buffer, 0, buffer.length, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                out.write(buffer, 0, length);
+                if (last ? deflater.finished() : (length < buffer.length && deflater.needsInput())) {
+                    break;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private int getZlibFlags() {
+        int compressionLevel = (level <= 1) ? 0 : (level <= 5) ? 1 : (level == 6) ? 2 : 3;
+        int flags = compressionLevel << 6;
+        return flags + (31 - ((0x78 << 8) + flags) % 31) % 31;
+    }
+
+    /**
+     * PLTE with the colours and tRNS with their alpha, the trailing opaque entries are left out of tRNS.
+     */
+    private static void writePalette(OutputStream out, IndexColorModel colorModel) throws IOException {
+        int size = colorModel.getMapSize();
+        byte[] palette = new byte[size * 3];
+        byte[] alphas = new byte[size];
+        int transparentEntries = 0;
+        for (int i = 0; i < size; i++) {
+            palette[i * 3] = (byte) colorModel.getRed(i);
+            palette[i * 3 + 1] = (byte) colorModel.getGreen(i);
+            palette[i * 3 + 2] = (byte) colorModel.getBlue(i);
+            alphas[i] = (byte) colorModel.getAlpha(i);
+            if (colorModel.getAlpha(i) != 255) {
+                transparentEntries = i + 1;
+            }
+        }
+        writeChunk(out, "PLTE", palette, 0, palette.length);
+        if (transparentEntries > 0) {
+            writeChunk(out, "tRNS", alphas, 0, transparentEntries);
+        }
+    }
+
+    private static void writeChunk(OutputStream out, String type, byte[] data, int offset, int length) throws IOException {
+        byte[] header = new byte[8];
+        putInt(header, 0, length);
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(typeBytes, 0, header, 4, 4);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, offset, length);
+        byte[] checksum = new byte[4];
+        putInt(checksum, 0, (int) crc.getValue());
+        out.write(header);
+        out.write(data, offset, length);
+        out.write(checksum);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
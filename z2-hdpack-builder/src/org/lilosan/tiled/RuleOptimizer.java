@@ -0,0 +1,103 @@
+package org.lilosan.tiled;
+
+import java.util.*;
+
+/**
+ * Keeps the background rules short, the emulator checks their conditions every frame.
+ * <ul>
+ * <li>The MAP_SLICE conditions compare the same byte with different values, one of them being true
+ * means the others are false, so a slice needs a single condition instead of four.</li>
+ * <li>Slices 0 and 1 show the background at the same offset, they share one rule
+ * with a MAP_SLICE_0_1 condition that matches both values.</li>
+ * <li>Rules already written for a previous background are not written again.</li>
+ * </ul>
+ * Mesen conditions check a single value and a rule can only AND its conditions, so the
+ * LOCATION and MAP conditions of every rule stay as they are.
+ */
+public class RuleOptimizer {
+
+    public static class MapSlice {
+        private final String rule;
+        private final int leftOffset;
+        private final int topOffset;
+
+        public MapSlice(String rule, int leftOffset, int topOffset) {
+            this.rule = rule;
+            this.leftOffset = leftOffset;
+            this.topOffset = topOffset;
+        }
+
+        /**
+         * The conditions selecting the slice, as written in the rules.
+         */
+        public String getRule() {
+            return rule;
+        }
+
+        public int getLeftOffset() {
+            return leftOffset;
+        }
+
+        public int getTopOffset() {
+            return topOffset;
+        }
+    }
+
+    private final boolean enabled;
+    private final Set<String> writtenRules;
+
+    public RuleOptimizer(boolean enabled) {
+        this.enabled = enabled;
+        this.writtenRules = new HashSet<>();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public List<Zelda2HiResGenerator.Condition> getMapSliceConditions() {
+        List<Zelda2HiResGenerator.Condition> conditions = new ArrayList<>();
+        if (enabled) {
+            conditions.add(Zelda2HiResGenerator.Condition.named("MAP_SLICE_0_1", Zelda2HiResGenerator.MAP_SLICE_CONSTANT, "<=", "1"));
+            conditions.add(new Zelda2HiResGenerator.Condition("MAP_SLICE", Zelda2HiResGenerator.MAP_SLICE_CONSTANT, "==", "2"));
+            conditions.add(new Zelda2HiResGenerator.Condition("MAP_SLICE", Zelda2HiResGenerator.MAP_SLICE_CONSTANT, "==", "3"));
+        } else {
+            for (String mapSliceCode:Zelda2HiResGenerator.getMapSliceCodes()) {
+                conditions.add(new Zelda2HiResGenerator.Condition("MAP_SLICE", Zelda2HiResGenerator.MAP_SLICE_CONSTANT, "==", mapSliceCode));
+            }
+        }
+        return conditions;
+    }
+
+    public List<MapSlice> getMapSlices() {
+        List<MapSlice> slices = new ArrayList<>();
+        if (enabled) {
+            slices.add(new MapSlice("MAP_SLICE_0_1", 0, 0));
+            slices.add(new MapSlice("MAP_SLICE_2", 0, 240));
+            slices.add(new MapSlice("MAP_SLICE_3", 512, 0));
+        } else {
+            slices.add(new MapSlice("MAP_SLICE_0&!MAP_SLICE_1&!MAP_SLICE_2&!MAP_SLICE_3", 0, 0));
+            slices.add(new MapSlice("!MAP_SLICE_0&MAP_SLICE_1&!MAP_SLICE_2&!MAP_SLICE_3", 0, 0));
+            slices.add(new MapSlice("!MAP_SLICE_0&!MAP_SLICE_1&MAP_SLICE_2&!MAP_SLICE_3", 0, 240));
+            slices.add(new MapSlice("!MAP_SLICE_0&!MAP_SLICE_1&!MAP_SLICE_2&MAP_SLICE_3", 512, 0));
+        }
+        return slices;
+    }
+
+    /**
+     * Removes the rule lines that were already written, the rules have to be given in the order they are written.
+     */
+    public String removeWrittenRules(String rules) {
+        if (!enabled) {
+            return rules;
+        }
+        StringBuilder result = new StringBuilder(rules.length());
+        for (String line:rules.split("\n", -1)) {
+            if (line.isEmpty() || writtenRules.add(line)) {
+                result.append(line).append("\n");
+            }
+        }
+        result.setLength(result.length() - 1); // The split gave one more line than the line ends
+        return result.toString();
+    }
+}
@@ -0,0 +1,170 @@
+package org.lilosan.tiled;
+
+import java.awt.image.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+/**
+ * 128 bit MD5 of the pixels of a tile, kept as two longs so tiles can be compared and used as keys
+ * without hex Strings. The digest is the one written as original-data-md5: the samples of every pixel,
+ * band by band, as 32 bit integers in native byte order.
+ */
+public final class TileFingerprint implements Comparable<TileFingerprint> {
+
+    private static class Digester {
+        private final MessageDigest md5 = BuildManifest.newMD5();
+        private final byte[] digest = new byte[16];
+        private ByteBuffer row = ByteBuffer.allocate(0).order(ByteOrder.nativeOrder());
+        private int[] samples = new int[0];
+
+        private ByteBuffer getRow(int bytes) {
+            if (row.capacity() < bytes) {
+                row = ByteBuffer.allocate(bytes).order(ByteOrder.nativeOrder());
+            }
+            row.clear();
+            return row;
+        }
+
+        private int[] getSamples(int length) {
+            if (samples.length < length) {
+                samples = new int[length];
+            }
+            return samples;
+        }
+    }
+
+    private static final ThreadLocal<Digester> DIGESTER = ThreadLocal.withInitial(Digester::new);
+
+    private final long high;
+    private final long low;
+
+    public TileFingerprint(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    public static TileFingerprint fromHex(String hex) {
+        if (hex == null) {
+            return null;
+        }
+        if (hex.length() != 32) {
+            throw new IllegalArgumentException("Not an MD5: " + hex);
+        }
+        return new TileFingerprint(Long.parseUnsignedLong(hex.substring(0, 16), 16), Long.parseUnsignedLong(hex.substring(16), 16));
+    }
+
+    public static TileFingerprint of(BufferedImage image) {
+        return of(image.getRaster(), 0, 0, image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * Fingerprint of an area of a raster, read from its data buffer without copying the area.
+     */
+    public static TileFingerprint of(Raster raster, int x, int y, int width, int height) {
+        Digester digester = DIGESTER.get();
+        SampleModel sampleModel = raster.getSampleModel();
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        int bands = raster.getNumBands();
+        int sampleX = x - raster.getSampleModelTranslateX();
+        int sampleY = y - raster.getSampleModelTranslateY();
+
+        if (sampleModel instanceof SinglePixelPackedSampleModel && dataBuffer instanceof DataBufferInt) {
+            // One int per pixel, like TYPE_INT_ARGB
+            SinglePixelPackedSampleModel packed = (SinglePixelPackedSampleModel) sampleModel;
+            int[] masks = packed.getBitMasks();
+            int[] offsets = packed.getBitOffsets();
+            int[] data = ((DataBufferInt) dataBuffer).getData();
+            for (int row = 0; row < height; row++) {
+                ByteBuffer bytes = digester.getRow(width * bands * 4);
+                int index = dataBuffer.getOffset() + (sampleY + row) * packed.getScanlineStride() + sampleX;
+                for (int column = 0; column < width; column++) {
+                    int pixel = data[index + column];
+                    for (int band = 0; band < bands; band++) {
+                        bytes.putInt((pixel & masks[band]) >>> offsets[band]);
+                    }
+                }
+                digester.md5.update(bytes.array(), 0, bytes.position());
+            }
+        } else if (sampleModel instanceof PixelInterleavedSampleModel && dataBuffer instanceof DataBufferByte && dataBuffer.getNumBanks() == 1) {
+            // One byte per sample, like TYPE_4BYTE_ABGR as decoded from PNG files
+            PixelInterleavedSampleModel interleaved = (PixelInterleavedSampleModel) sampleModel;
+            int[] bandOffsets = interleaved.getBandOffsets();
+            int pixelStride = interleaved.getPixelStride();
+            byte[] data = ((DataBufferByte) dataBuffer).getData();
+            for (int row = 0; row < height; row++) {
+                ByteBuffer bytes = digester.getRow(width * bands * 4);
+                int index = dataBuffer.getOffset() + (sampleY + row) * interleaved.getScanlineStride() + sampleX * pixelStride;
+                for (int column = 0; column < width; column++) {
+                    for (int band = 0; band < bands; band++) {
+                        bytes.putInt(data[index + bandOffsets[band]] & 0xff);
+                    }
+                    index += pixelStride;
+                }
+                digester.md5.update(bytes.array(), 0, bytes.position());
+            }
+        } else {
+            // Any other layout goes through the raster, one row at a time
+            int[] samples = digester.getSamples(width * bands);
+            for (int row = 0; row < height; row++) {
+                raster.getPixels(x, y + row, width, 1, samples);
+                ByteBuffer bytes = digester.getRow(width * bands * 4);
+                for (int i = 0; i < width * bands; i++) {
+                    bytes.putInt(samples[i]);
+                }
+                digester.md5.update(bytes.array(), 0, bytes.position());
+            }
+        }
+
+        try {
+            digester.md5.digest(digester.digest, 0, digester.digest.length);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer digest = ByteBuffer.wrap(digester.digest);
+        return new TileFingerprint(digest.getLong(), digest.getLong());
+    }
+
+    public String toHex() {
+        String hex = Long.toHexString(high);
+        String lowHex = Long.toHexString(low);
+        StringBuilder sb = new StringBuilder(32);
+        for (int i = hex.length(); i < 16; i++) {
+            sb.append('0');
+        }
+        sb.append(hex);
+        for (int i = lowHex.length(); i < 16; i++) {
+            sb.append('0');
+        }
+        sb.append(lowHex);
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        TileFingerprint that = (TileFingerprint) o;
+        return high == that.high && low == that.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(high) * 31 + Long.hashCode(low);
+    }
+
+    /**
+     * Same order as comparing the hex Strings.
+     */
+    @Override
+    public int compareTo(TileFingerprint o) {
+        int result = Long.compareUnsigned(high, o.high);
+        return (result != 0) ? result : Long.compareUnsigned(low, o.low);
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+}
@@ -0,0 +1,138 @@
+package org.lilosan.tiled;
+
+import java.awt.image.*;
+
+/**
+ * Draws the tiles of a tileset by copying rows between the backing arrays of the images,
+ * without the colour conversions of getRGB and setRGB. Tiles and canvas must have the same
+ * pixel layout: int ARGB, or byte indices of the same palette. Any other tile is drawn with getRGB and setRGB.
+ */
+public class TileRenderer {
+
+    /**
+     * Where the pixels of an image are in its data buffer.
+     */
+    static final class Pixels {
+        private final int[] ints;
+        private final byte[] bytes;
+        private final ColorModel colorModel;
+        private final int offset;
+        private final int stride;
+
+        private Pixels(int[] ints, byte[] bytes, ColorModel colorModel, int offset, int stride) {
+            this.ints = ints;
+            this.bytes = bytes;
+            this.colorModel = colorModel;
+            this.offset = offset;
+            this.stride = stride;
+        }
+
+        /**
+         * Returns null when the pixels are not stored one int or one byte per pixel.
+         */
+        static Pixels of(BufferedImage image) {
+            WritableRaster raster = image.getRaster();
+            SampleModel sampleModel = raster.getSampleModel();
+            DataBuffer dataBuffer = raster.getDataBuffer();
+            if (dataBuffer.getNumBanks() != 1) {
+                return null;
+            }
+            int x = raster.getMinX() - raster.getSampleModelTranslateX();
+            int y = raster.getMinY() - raster.getSampleModelTranslateY();
+            if (image.getType() == BufferedImage.TYPE_INT_ARGB && sampleModel instanceof SinglePixelPackedSampleModel && dataBuffer instanceof DataBufferInt) {
+                SinglePixelPackedSampleModel packed = (SinglePixelPackedSampleModel) sampleModel;
+                return new Pixels(((DataBufferInt) dataBuffer).getData(), null, image.getColorModel(), dataBuffer.getOffset() + packed.getOffset(x, y), packed.getScanlineStride());
+            }
+            if (IndexedImages.isIndexed(image) && ((ComponentSampleModel) sampleModel).getPixelStride() == 1 && dataBuffer instanceof DataBufferByte) {
+                ComponentSampleModel component = (ComponentSampleModel) sampleModel;
+                return new Pixels(null, ((DataBufferByte) dataBuffer).getData(), image.getColorModel(), dataBuffer.getOffset() + component.getOffset(x, y), component.getScanlineStride());
+            }
+            return null;
+        }
+
+        boolean canCopyTo(Pixels canvas) {
+            return (ints != null) ? canvas.ints != null : (canvas.bytes != null && (colorModel == canvas.colorModel || colorModel.equals(canvas.colorModel)));
+        }
+
+        boolean isEmpty(int width, int height) {
+            for (int row = 0; row < height; row++) {
+                int start = offset + row * stride;
+                for (int i = start; i < start + width; i++) {
+                    if ((ints != null) ? ints[i] != 0 : bytes[i] != 0) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        void copyTo(Pixels canvas, int x, int y, int width, int height) {
+            Object source = (ints != null) ? ints : bytes;
+            Object target = (canvas.ints != null) ? canvas.ints : canvas.bytes;
+            int targetOffset = canvas.offset + y * canvas.stride + x;
+            for (int row = 0; row < height; row++) {
+                System.arraycopy(source, offset + row * stride, target, targetOffset + row * canvas.stride, width);
+            }
+        }
+    }
+
+    private final TiledTSX tsx;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final Pixels[] tiles;
+    private final boolean[] empty;
+
+    public TileRenderer(TiledTSX tsx) {
+        this.tsx = tsx;
+        this.tileWidth = tsx.getTileWidth();
+        this.tileHeight = tsx.getTileHeight();
+        this.tiles = new Pixels[tsx.size()];
+        this.empty = new boolean[tsx.size()];
+        for (int id = 0; id < tiles.length; id++) {
+            Tile tile = tsx.getTile(id);
+            if (tile != null) {
+                tiles[id] = Pixels.of(tile.getBufferedImage());
+                empty[id] = (tiles[id] != null) && tiles[id].isEmpty(tileWidth, tileHeight);
+            }
+        }
+    }
+
+    /**
+     * Draws the tiles in rows of the given number of columns, starting at left and top.
+     * The canvas has to be transparent where the tiles go, fully transparent tiles are not drawn.
+     */
+    public void draw(int[] ids, int columns, BufferedImage canvas, int left, int top) {
+        Pixels canvasPixels = Pixels.of(canvas);
+        for (int i = 0; i < ids.length; i++) {
+            int id = ids[i];
+            int x = left + (i % columns) * tileWidth;
+            int y = top + (i / columns) * tileHeight;
+            Pixels tilePixels = (id >= 0 && id < tiles.length) ? tiles[id] : null;
+            if (tilePixels != null && canvasPixels != null && tilePixels.canCopyTo(canvasPixels)) {
+                if (!empty[id]) {
+                    tilePixels.copyTo(canvasPixels, x, y, tileWidth, tileHeight);
+                }
+            } else {
+                BufferedImage tileImage = tsx.getTile(id).getBufferedImage();
+                int[] argb = tileImage.getRGB(0, 0, tileWidth, tileHeight, null, 0, tileWidth);
+                canvas.setRGB(x, y, tileWidth, tileHeight, argb, 0, tileWidth);
+            }
+        }
+    }
+
+    /**
+     * Copies an area of the image to another place of the same image, the areas must not overlap.
+     */
+    public static void copy(BufferedImage image, int x, int y, int width, int height, int toX, int toY) {
+        Pixels pixels = Pixels.of(image);
+        if (pixels != null) {
+            Object data = (pixels.ints != null) ? pixels.ints : pixels.bytes;
+            for (int row = 0; row < height; row++) {
+                System.arraycopy(data, pixels.offset + (y + row) * pixels.stride + x, data, pixels.offset + (toY + row) * pixels.stride + toX, width);
+            }
+        } else {
+            WritableRaster raster = image.getRaster();
+            raster.setRect(toX - x, toY - y, raster.createChild(x, y, width, height, x, y, null));
+        }
+    }
+}
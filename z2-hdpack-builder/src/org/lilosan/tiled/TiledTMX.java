@@ -1,146 +1,193 @@
 package org.lilosan.tiled;
 
-import org.w3c.dom.Node;
-
 import java.awt.geom.AffineTransform;
 import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 public class TiledTMX {
 
     private final int scaleFactor;
     private final String tileSetName;
-    private final Integer[][] map;
+    private final int[] map; // Tile ids in row-major order
+    private final int width;
+    private final int height;
     private final int tileWidth;
     private final int tileHeight;
 
     public static TiledTMX getInstance(File file) throws Exception {
-        String source = getSource(file);
-        int tilewidth = getTileWidth(file);
-        int tileHeight = getTileHeight(file);
-        Integer[][] csv = getCSV(file);
-        TiledTMX tmx = new TiledTMX(1, source, csv.length, csv[0].length,  tilewidth, tileHeight);
-        for (int y = 0; y < csv[0].length; y++) {
-            for (int x = 0; x < csv.length; x++) {
-                tmx.add(x, y, csv[x][y]);
-            }
-        }
-        return tmx;
+        BuildMetrics metrics = BuildMetrics.getShared();
+        long start = metrics.start();
+        TmxDocument document = TmxDocument.read(file);
+        metrics.stop(BuildMetrics.Phase.XML_PARSE, start);
+        return new TiledTMX(1, document.getTilesetSource(), document.getWidth(), document.getHeight(), document.getTileWidth(), document.getTileHeight(), document.getData());
     }
 
     public TiledTMX(int scaleFactor, String tileSetName, int mapTileWidth, int mapTileHeight, int tileWidth, int tileHeight) {
+        this(scaleFactor, tileSetName, mapTileWidth, mapTileHeight, tileWidth, tileHeight, new int[mapTileWidth * mapTileHeight]);
+    }
+
+    private TiledTMX(int scaleFactor, String tileSetName, int mapTileWidth, int mapTileHeight, int tileWidth, int tileHeight, int[] map) {
         this.scaleFactor = scaleFactor;
         this.tileSetName = tileSetName;
-        this.map = new Integer[mapTileWidth][mapTileHeight];
+        this.map = map;
+        this.width = mapTileWidth;
+        this.height = mapTileHeight;
         this.tileWidth = tileWidth;
         this.tileHeight = tileHeight;
     }
 
     public int getSize() {
-        return map.length * map[0].length;
+        return map.length;
     }
 
-    public void add(int x, int y, int id) {
-        this.map[x][y] = id;
+    /**
+     * Width of the map in tiles.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Height of the map in tiles.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    public int get(int x, int y) {
+        return map[y * width + x];
+    }
+
+    public void set(int x, int y, int id) {
+        map[y * width + x] = id;
+    }
+
+    /**
+     * The tile ids in row-major order, changing the array changes the map.
+     */
+    public int[] getData() {
+        return map;
     }
 
     public String getCSV() {
-        StringBuilder csv = new StringBuilder();
-        for (int y = 0; y < map[0].length; y++) {
-            for (int x = 0; x < map.length; x++) {
-                if (x > 0) {
-                    csv.append(",");
-                }
-                csv.append(map[x][y]);
-            }
-            if (y < map[0].length -1) {
-                csv.append(",");
-            }
-            csv.append("\n");
-        }
-        return csv.toString();
+        return CsvCodec.toString(map, width, height);
     }
 
+    /**
+     * Draws the map at its own size into a transparent area of the canvas, which must have the pixel layout of the tileset.
+     */
+    public void draw(TiledTSX tsx, BufferedImage canvas, int left, int top) {
+        BuildMetrics metrics = BuildMetrics.getShared();
+        long start = metrics.start();
+        tsx.getRenderer().draw(map, width, canvas, left, top);
+        metrics.add(BuildMetrics.Counter.TILES_BLITTED, map.length);
+        metrics.stop(BuildMetrics.Phase.RENDER, start);
+    }
+
+    /**
+     * Renders the map with the tiles of the tileset, as palette indices when the tileset has a palette.
+     */
     public BufferedImage getBufferedImage(TiledTSX tsx, int yOffset) {
-        BufferedImage before = new BufferedImage(map.length * tsx.getTileWidth(), yOffset + map[0].length * tsx.getTileHeight(), BufferedImage.TYPE_INT_ARGB);
-        for (int y = 0; y < map[0].length; y++) {
-            for (int x = 0; x < map.length; x++) {
-                Integer tileId = map[x][y];
-                BufferedImage tileImage = tsx.getTile(tileId).getBufferedImage();
-                int[] argb = tileImage.getRGB(0, 0, tsx.getTileWidth(), tsx.getTileHeight(), null, 0, tsx.getTileWidth());
-                before.setRGB(x * tsx.getTileWidth(), yOffset + y * tsx.getTileHeight(), tsx.getTileWidth(), tsx.getTileHeight(), argb, 0, tsx.getTileWidth());
-            }
-        }
+        int imageWidth = width * tsx.getTileWidth();
+        int imageHeight = yOffset + height * tsx.getTileHeight();
+        BufferedImage before = tsx.isIndexed() ? IndexedImages.create(tsx.getColorModel(), imageWidth, imageHeight) : new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_ARGB);
+        BuildMetrics metrics = BuildMetrics.getShared();
+        long start = metrics.start();
+        tsx.getRenderer().draw(map, width, before, 0, yOffset);
+        metrics.add(BuildMetrics.Counter.TILES_BLITTED, map.length);
 
         BufferedImage after = null;
         if (scaleFactor == 1) {
             after = before;
         } else {
-            after = new BufferedImage(before.getWidth() * scaleFactor, before.getHeight() * scaleFactor, BufferedImage.TYPE_INT_ARGB);
+            after = IndexedImages.createCompatible(before, before.getWidth() * scaleFactor, before.getHeight() * scaleFactor);
             AffineTransform at = new AffineTransform();
             at.scale(scaleFactor, scaleFactor);
             AffineTransformOp scaleOp = new AffineTransformOp(at, AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
             after = scaleOp.filter(before, after);
         }
+        metrics.stop(BuildMetrics.Phase.RENDER, start);
         return after;
     }
 
     public String getTMX() {
-        StringBuilder tmx = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
-        tmx.append("<map version=\"1.8\" tiledversion=\"1.8.2\" orientation=\"orthogonal\" renderorder=\"right-down\" width=\"").append(map.length).append("\" height=\"").append(map[0].length).append("\" tilewidth=\"").append(tileWidth * scaleFactor).append("\" tileheight=\"").append(tileHeight * scaleFactor).append("\" infinite=\"0\" nextlayerid=\"6\" nextobjectid=\"1\">\n");
-        tmx.append(" <tileset firstgid=\"0\" source=\"").append(tileSetName).append(".tsx\"/>\n");
-        tmx.append(" <layer id=\"5\" name=\"base\" width=\"").append(map.length).append("\" height=\"").append(map[0].length).append("\">\n");
-        tmx.append("  <data encoding=\"csv\">\n");
-        tmx.append(getCSV());
-        tmx.append("</data>\n");
-        tmx.append(" </layer>\n");
-        tmx.append("</map>\n");
+        StringWriter tmx = new StringWriter();
+        try {
+            write(tmx);
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException(e);
+        }
         return tmx.toString();
     }
 
-    //
-    // Utility methods to read TMX
-    //
-
-    public static Integer[][] getCSV(File file) throws Exception {
-        String csv = getCsvAsString(file);
-        String[] lines = csv.trim().split("\n");
-        Integer[][] data = null;
-        for (int y = 0; y < lines.length; y++) {
-            String[] line = lines[y].split(",");
-            if (data == null) {
-                data = new Integer[line.length][lines.length];
-            }
-            for (int x = 0; x < line.length; x++) {
-                data[x][y] = Integer.parseInt(line[x]);
-            }
+    public void write(Path path) throws IOException, XMLStreamException {
+        BuildMetrics metrics = BuildMetrics.getShared();
+        long start = metrics.start();
+        try (Writer out = XMLUtils.openWriter(path)) {
+            write(out);
         }
-        return data;
+        metrics.add(BuildMetrics.Counter.BYTES_WRITTEN, Files.size(path));
+        metrics.stop(BuildMetrics.Phase.TMX_WRITE, start);
     }
 
-    private static String getCsvAsString(File file) throws Exception {
-        Node map = XMLUtils.getRootNode(file, "map");
-        Node layer = XMLUtils.getChildTag(map, "layer");
-        Node data = XMLUtils.getChildTag(layer, "data");
-        String encoding = XMLUtils.getAttribute(data, "encoding");
-        if (encoding.equals("csv")) {
-            return data.getFirstChild().getNodeValue();
-        }
-        throw new Exception("CSV not found");
+    public void write(Writer out) throws XMLStreamException {
+        XMLStreamWriter tmx = XMLUtils.createStreamWriter(out);
+        tmx.writeStartDocument("UTF-8", "1.0");
+        tmx.writeCharacters("\n");
+        tmx.writeStartElement("map");
+        tmx.writeAttribute("version", "1.8");
+        tmx.writeAttribute("tiledversion", "1.8.2");
+        tmx.writeAttribute("orientation", "orthogonal");
+        tmx.writeAttribute("renderorder", "right-down");
+        tmx.writeAttribute("width", Integer.toString(width));
+        tmx.writeAttribute("height", Integer.toString(height));
+        tmx.writeAttribute("tilewidth", Integer.toString(tileWidth * scaleFactor));
+        tmx.writeAttribute("tileheight", Integer.toString(tileHeight * scaleFactor));
+        tmx.writeAttribute("infinite", "0");
+        tmx.writeAttribute("nextlayerid", "6");
+        tmx.writeAttribute("nextobjectid", "1");
+        tmx.writeCharacters("\n ");
+        tmx.writeEmptyElement("tileset");
+        tmx.writeAttribute("firstgid", "0");
+        tmx.writeAttribute("source", tileSetName + ".tsx");
+        tmx.writeCharacters("\n ");
+        tmx.writeStartElement("layer");
+        tmx.writeAttribute("id", "5");
+        tmx.writeAttribute("name", "base");
+        tmx.writeAttribute("width", Integer.toString(width));
+        tmx.writeAttribute("height", Integer.toString(height));
+        tmx.writeCharacters("\n  ");
+        tmx.writeStartElement("data");
+        tmx.writeAttribute("encoding", "csv");
+        tmx.writeCharacters("\n");
+        CsvCodec.write(map, width, height, tmx);
+        tmx.writeEndElement();
+        tmx.writeCharacters("\n ");
+        tmx.writeEndElement();
+        tmx.writeCharacters("\n");
+        tmx.writeEndElement();
+        tmx.writeCharacters("\n");
+        tmx.writeEndDocument();
+        tmx.flush();
     }
 
-    private static String getSource(File file) throws Exception {
-        Node map = XMLUtils.getRootNode(file, "map");
-        Node tileset = XMLUtils.getChildTag(map, "tileset");
-        return XMLUtils.getAttribute(tileset, "source");
-    }
+    //
+    // Utility methods to read TMX
+    //
 
     public static int getTileWidth(File file) throws Exception {
-        return Integer.parseInt(XMLUtils.getAttribute(XMLUtils.getRootNode(file, "map"), "tilewidth"));
+        return TmxDocument.read(file).getTileWidth();
     }
 
     public static int getTileHeight(File file) throws Exception {
-        return Integer.parseInt(XMLUtils.getAttribute(XMLUtils.getRootNode(file, "map"), "tileheight"));
+        return TmxDocument.read(file).getTileHeight();
     }
 }
@@ -1,19 +1,24 @@
 package org.lilosan.tiled;
 
-import org.w3c.dom.Node;
-
 import javax.imageio.ImageIO;
 import java.awt.geom.AffineTransform;
 import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
 import java.awt.image.Raster;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Path;
 import java.util.*;
 
 public class TiledTSX {
 
-    private final Map<String, Tile> tilesByOriginalDataMd5;
-    private final Map<String, Integer> idByOriginalDataMd5;
+    private final Map<TileFingerprint, Tile> tilesByFingerprint;
+    private final Map<TileFingerprint, Integer> idByFingerprint;
     private final Map<Integer, Tile> tilesById;
 
     private final String name;
@@ -21,28 +26,53 @@ public class TiledTSX {
     private final int tileWidth;
     private final int tileHeight;
     private final int columns;
+    private String imageSource;
+    private IndexColorModel colorModel; // Palette of the tiles, null when they are ARGB
+    private TileRenderer renderer;
 
+    /**
+     * Returns the tileset from the shared {@link TilesetCache}, loading it only if the TSX file changed.
+     */
     public static TiledTSX getInstance(File file) throws Exception {
-        String name = getName(file);
-        String source = getSource(file);
-        int columns = getColumns(file);
-        int tileWidth = getTileWidth(file);
-        int tileHeight = getTileHeight(file);
+        return TilesetCache.getShared().get(file);
+    }
+
+    public static TiledTSX load(File file) throws Exception {
+        BuildMetrics metrics = BuildMetrics.getShared();
+        long start = metrics.start();
+        TsxDocument document = TsxDocument.read(file);
+        metrics.stop(BuildMetrics.Phase.XML_PARSE, start);
+        start = metrics.start();
+        String name = document.getName();
+        String source = document.getImageSource();
+        int columns = document.getColumns();
+        int tileWidth = document.getTileWidth();
+        int tileHeight = document.getTileHeight();
 
         // Load metadata
         Map<Integer, String> physicalIdToMD5 = new HashMap<>();
-        List<Node> tilesMetadata = getTiles(file);
-        for (int logicalId = 0; logicalId < tilesMetadata.size(); logicalId++) {
-            int physicalId = getId(tilesMetadata.get(logicalId));
-            String md5 = getOriginalDataMD5(tilesMetadata.get(logicalId));
+        for (TsxDocument.TileEntry tileMetadata:document.getTiles()) {
+            String md5 = tileMetadata.getOriginalDataMD5();
             if (md5 != null) {
-                physicalIdToMD5.put(physicalId, md5);
+                physicalIdToMD5.put(tileMetadata.getId(), md5);
             }
         }
 
         // Load tiles
         TiledTSX tsx = new TiledTSX(name, 1, tileWidth, tileHeight, columns);
+        tsx.imageSource = source;
         BufferedImage tilesImages = ImageIO.read(new File(file.getParent() + "/" + source));
+        BufferedImage indexedImages = IndexedImages.toIndexed(tilesImages);
+        if (indexedImages != null) {
+            // NES tiles have few colours, keep them as palette indices
+            tilesImages = indexedImages;
+            tsx.colorModel = (IndexColorModel) indexedImages.getColorModel();
+        } else if (tilesImages.getType() != BufferedImage.TYPE_INT_ARGB) {
+            // Otherwise ARGB, the layout the renderer copies without conversions
+            BufferedImage argbImages = new BufferedImage(tilesImages.getWidth(), tilesImages.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            argbImages.setRGB(0, 0, tilesImages.getWidth(), tilesImages.getHeight(), tilesImages.getRGB(0, 0, tilesImages.getWidth(), tilesImages.getHeight(), null, 0, tilesImages.getWidth()), 0, tilesImages.getWidth());
+            tilesImages = argbImages;
+        }
         Raster raster = tilesImages.getData();
         int width = raster.getWidth();
         int height = raster.getHeight();
@@ -54,6 +84,7 @@ public class TiledTSX {
                 physicalId++;
             }
         }
+        metrics.stop(BuildMetrics.Phase.TILESET_DECODE, start);
 
         return tsx;
     }
@@ -63,10 +94,11 @@ public class TiledTSX {
         this.scaleFactor = scaleFactor;
         this.tileWidth = tileWidth;
         this.tileHeight = tileHeight;
-        this.tilesByOriginalDataMd5 = new HashMap<>();
+        this.tilesByFingerprint = new HashMap<>();
         this.tilesById = new HashMap<>();
-        this.idByOriginalDataMd5 = new HashMap<>();
+        this.idByFingerprint = new HashMap<>();
         this.columns = columns;
+        this.imageSource = name + ".png";
     }
 
     public int getTileWidth() {
@@ -89,24 +121,37 @@ public class TiledTSX {
         return name;
     }
 
+    public String getImageSource() {
+        return imageSource;
+    }
+
     public int size() {
         return tilesById.size();
     }
 
+    public boolean isIndexed() {
+        return colorModel != null;
+    }
+
+    public IndexColorModel getColorModel() {
+        return colorModel;
+    }
+
     public Integer add(Tile tile) {
         return add(tile, false);
     }
 
     public Integer add(Tile tile, boolean allowDuplicated) {
+        renderer = null;
         Integer id;
-        if (!allowDuplicated && tilesByOriginalDataMd5.containsKey(tile.getOriginalDataMd5())) {
-            id = idByOriginalDataMd5.get(tile.getOriginalDataMd5());
+        if (!allowDuplicated && tilesByFingerprint.containsKey(tile.getFingerprint())) {
+            id = idByFingerprint.get(tile.getFingerprint());
         } else {
             id = tilesById.size();
             tilesById.put(id, tile);
             if (!allowDuplicated) {
-                tilesByOriginalDataMd5.put(tile.getOriginalDataMd5(), tile);
-                idByOriginalDataMd5.put(tile.getOriginalDataMd5(), id);
+                tilesByFingerprint.put(tile.getFingerprint(), tile);
+                idByFingerprint.put(tile.getFingerprint(), id);
             }
         }
         return id;
@@ -116,28 +161,29 @@ public class TiledTSX {
         return tilesById.get(id);
     }
 
+    /**
+     * The renderer of the current tiles, shared by every map drawn with this tileset.
+     */
+    public synchronized TileRenderer getRenderer() {
+        if (renderer == null) {
+            renderer = new TileRenderer(this);
+        }
+        return renderer;
+    }
+
     public BufferedImage getBufferedImage() {
-        BufferedImage before = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_ARGB);
-        int x = 0;
-        int y = 0;
-        for (Integer id:tilesById.keySet()) {
-            BufferedImage tileImage = tilesById.get(id).getBufferedImage();
-            int[] argb = tileImage.getRGB(0, 0, tileWidth, tileHeight, null, 0, tileWidth);
-            before.setRGB(x, y, tileWidth, tileHeight, argb, 0, tileWidth);
-
-            if (x == getWidth() - tileWidth) { // If last tile in the row has been written
-                x = 0; // start a new row
-                y += tileHeight;
-            } else { // If not
-                x += tileWidth; // Move to next available position on the row
-            }
+        BufferedImage before = isIndexed() ? IndexedImages.create(colorModel, getWidth(), getHeight()) : new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_ARGB);
+        int[] ids = new int[size()];
+        for (int id = 0; id < ids.length; id++) {
+            ids[id] = id;
         }
+        getRenderer().draw(ids, columns, before, 0, 0);
 
         BufferedImage after = null;
         if (scaleFactor == 1) {
             after = before;
         } else {
-            after = new BufferedImage(before.getWidth() * scaleFactor, before.getHeight() * scaleFactor, BufferedImage.TYPE_INT_ARGB);
+            after = IndexedImages.createCompatible(before, before.getWidth() * scaleFactor, before.getHeight() * scaleFactor);
             AffineTransform at = new AffineTransform();
             at.scale(scaleFactor, scaleFactor);
             AffineTransformOp scaleOp = new AffineTransformOp(at, AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
@@ -147,71 +193,83 @@ public class TiledTSX {
     }
 
     public String getTSX() {
-        StringBuilder tsx = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
-        tsx.append("<tileset version=\"1.8\" tiledversion=\"1.8.2\" name=\"").append(name).append("\" tilewidth=\"").append(tileWidth * scaleFactor).append("\" tileheight=\"").append(tileHeight * scaleFactor).append("\" tilecount=\"").append(size()).append("\" columns=\"").append(columns).append("\">\n");
-        tsx.append(" <image source=\"").append(name).append(".png\" trans=\"ff00ff\" width=\"").append(getWidth() * scaleFactor).append("\" height=\"").append(getHeight() * scaleFactor).append("\"/>\n");
+        StringWriter tsx = new StringWriter();
+        try {
+            write(tsx);
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException(e);
+        }
+        return tsx.toString();
+    }
+
+    public void write(Path path) throws IOException, XMLStreamException {
+        try (Writer out = XMLUtils.openWriter(path)) {
+            write(out);
+        }
+    }
+
+    public void write(Writer out) throws XMLStreamException {
+        XMLStreamWriter tsx = XMLUtils.createStreamWriter(out);
+        tsx.writeStartDocument("UTF-8", "1.0");
+        tsx.writeCharacters("\n");
+        tsx.writeStartElement("tileset");
+        tsx.writeAttribute("version", "1.8");
+        tsx.writeAttribute("tiledversion", "1.8.2");
+        tsx.writeAttribute("name", name);
+        tsx.writeAttribute("tilewidth", Integer.toString(tileWidth * scaleFactor));
+        tsx.writeAttribute("tileheight", Integer.toString(tileHeight * scaleFactor));
+        tsx.writeAttribute("tilecount", Integer.toString(size()));
+        tsx.writeAttribute("columns", Integer.toString(columns));
+        tsx.writeCharacters("\n ");
+        tsx.writeEmptyElement("image");
+        tsx.writeAttribute("source", imageSource);
+        tsx.writeAttribute("trans", "ff00ff");
+        tsx.writeAttribute("width", Integer.toString(getWidth() * scaleFactor));
+        tsx.writeAttribute("height", Integer.toString(getHeight() * scaleFactor));
+        tsx.writeCharacters("\n");
         for (Integer id:tilesById.keySet()) {
-            tsx.append(" <tile id=\"").append(id).append("\">\n");
+            tsx.writeCharacters(" ");
+            tsx.writeStartElement("tile");
+            tsx.writeAttribute("id", id.toString());
+            tsx.writeCharacters("\n");
             String originalDataMd5 = tilesById.get(id).getOriginalDataMd5();
             if (originalDataMd5 != null) {
-                tsx.append("  <properties>\n");
-                tsx.append("   <property name=\"" + Tile.ORIGINAL_DATA_MD5 + "\" value=\"").append(originalDataMd5).append("\"/>\n");
-                tsx.append("  </properties>\n");
+                tsx.writeCharacters("  ");
+                tsx.writeStartElement("properties");
+                tsx.writeCharacters("\n   ");
+                tsx.writeEmptyElement("property");
+                tsx.writeAttribute("name", Tile.ORIGINAL_DATA_MD5);
+                tsx.writeAttribute("value", originalDataMd5);
+                tsx.writeCharacters("\n  ");
+                tsx.writeEndElement();
+                tsx.writeCharacters("\n");
             }
-            tsx.append(" </tile>\n");
+            tsx.writeCharacters(" ");
+            tsx.writeEndElement();
+            tsx.writeCharacters("\n");
         }
-        tsx.append("</tileset>");
-        return tsx.toString();
+        tsx.writeEndElement();
+        tsx.writeEndDocument();
+        tsx.flush();
     }
 
     //
     // Utility methods to read TSX
     //
 
-    public static int getId(Node node) throws Exception {
-        return Integer.parseInt(XMLUtils.getAttribute(node, "id"));
-    }
-
-    public static String getOriginalDataMD5(Node node) throws Exception {
-        String md5 = null;
-        if (node.hasChildNodes()) {
-            List<Node> propertiesList = XMLUtils.getChildTags(node, "properties");
-            if (!propertiesList.isEmpty()) {
-                List<Node> propertyList = XMLUtils.getChildTags(propertiesList.get(0), "property");
-                for (Node property:propertyList) {
-                    if (XMLUtils.getAttribute(property, "name").equals("original-data-md5")) {
-                        md5 = XMLUtils.getAttribute(property, "value");
-                    }
-                }
-            }
-        }
-        return md5;
-    }
-
     public static int getColumns(File file) throws Exception {
-        return Integer.parseInt(XMLUtils.getAttribute(XMLUtils.getRootNode(file, "tileset"), "columns"));
+        return TsxDocument.read(file).getColumns();
     }
 
     public static int getTileWidth(File file) throws Exception {
-        return Integer.parseInt(XMLUtils.getAttribute(XMLUtils.getRootNode(file, "tileset"), "tilewidth"));
+        return TsxDocument.read(file).getTileWidth();
     }
 
     public static int getTileHeight(File file) throws Exception {
-        return Integer.parseInt(XMLUtils.getAttribute(XMLUtils.getRootNode(file, "tileset"), "tileheight"));
-    }
-
-    public static List<Node> getTiles(File file) throws Exception {
-        Node tileset = XMLUtils.getRootNode(file, "tileset");
-        return XMLUtils.getChildTags(tileset, "tile");
-    }
-
-    private static String getName(File file) throws Exception {
-        return XMLUtils.getAttribute(XMLUtils.getRootNode(file, "tileset"), "name");
+        return TsxDocument.read(file).getTileHeight();
     }
 
-    private static String getSource(File file) throws Exception {
-        Node tileset = XMLUtils.getRootNode(file, "tileset");
-        Node image = XMLUtils.getChildTag(tileset, "image");
-        return XMLUtils.getAttribute(image, "source");
+    public static List<TsxDocument.TileEntry> getTiles(File file) throws Exception {
+        return TsxDocument.read(file).getTiles();
     }
 }
\ No newline at end of file
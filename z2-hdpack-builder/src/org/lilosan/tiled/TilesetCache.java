@@ -0,0 +1,74 @@
+package org.lilosan.tiled;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps the tilesets already loaded, so every TSX and its image are decoded once per build instead of once per map.
+ * A tileset is reloaded when its TSX file is modified. The cached tilesets are shared, don't add tiles to them.
+ */
+public class TilesetCache {
+
+    private static final TilesetCache SHARED = new TilesetCache();
+
+    private static class Entry {
+        private final long lastModified;
+        private final long length;
+        private final FutureTask<TiledTSX> tileset;
+
+        private Entry(File file) {
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+            this.tileset = new FutureTask<>(() -> TiledTSX.load(file));
+        }
+
+        private boolean isCurrent(File file) {
+            return lastModified == file.lastModified() && length == file.length();
+        }
+    }
+
+    private final Map<String, Entry> tilesetsByPath;
+
+    public static TilesetCache getShared() {
+        return SHARED;
+    }
+
+    public TilesetCache() {
+        this.tilesetsByPath = new ConcurrentHashMap<>();
+    }
+
+    public TiledTSX get(File file) throws Exception {
+        String path = file.getCanonicalPath();
+        Entry entry = tilesetsByPath.get(path);
+        boolean loaded = false;
+        while (entry == null || !entry.isCurrent(file)) {
+            Entry candidate = new Entry(file);
+            boolean inserted = (entry == null) ? tilesetsByPath.putIfAbsent(path, candidate) == null : tilesetsByPath.replace(path, entry, candidate);
+            if (inserted) {
+                // Only the thread that inserted the entry loads the tileset, the others wait for it
+                candidate.tileset.run();
+                loaded = true;
+            }
+            entry = tilesetsByPath.get(path);
+        }
+        BuildMetrics.getShared().increment((loaded) ? BuildMetrics.Counter.CACHE_MISSES : BuildMetrics.Counter.CACHE_HITS);
+
+        try {
+            return entry.tileset.get();
+        } catch (ExecutionException e) {
+            tilesetsByPath.remove(path, entry); // Don't keep failures, the file may be fixed
+            throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+        }
+    }
+
+    public void clear() {
+        tilesetsByPath.clear();
+    }
+
+    public int size() {
+        return tilesetsByPath.size();
+    }
+}
@@ -0,0 +1,133 @@
+package org.lilosan.tiled;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Contents of a TMX file, streamed once: the map attributes, its tileset reference and the tile ids of its layer.
+ * The CSV layer data is decoded while it is read, without keeping the XML text.
+ */
+public class TmxDocument {
+
+    private final Map<String, String> attributes;
+    private final Map<String, String> tilesetAttributes;
+    private final Map<String, String> layerAttributes;
+    private int width;
+    private int height;
+    private int[] data;
+
+    public static TmxDocument read(File file) throws Exception {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            XMLStreamReader reader = XMLUtils.createStreamReader(in);
+            try {
+                return read(reader, file);
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    private static TmxDocument read(XMLStreamReader reader, File file) throws Exception {
+        TmxDocument document = null;
+        boolean tilesetFound = false;
+        boolean layerFound = false;
+        CsvCodec.Decoder decoder = null;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String tagName = reader.getLocalName();
+                if (document == null) {
+                    if (!tagName.equals("map")) {
+                        throw new Exception("Not a TMX file: " + file);
+                    }
+                    document = new TmxDocument(XMLUtils.getAttributes(reader));
+                } else if (tagName.equals("tileset") && !tilesetFound) {
+                    document.tilesetAttributes.putAll(XMLUtils.getAttributes(reader));
+                    tilesetFound = true;
+                } else if (tagName.equals("layer") && !layerFound) {
+                    document.layerAttributes.putAll(XMLUtils.getAttributes(reader));
+                } else if (tagName.equals("data") && !layerFound) {
+                    if (!"csv".equals(XMLUtils.getAttribute(reader, "encoding"))) {
+                        throw new Exception("CSV not found");
+                    }
+                    decoder = new CsvCodec.Decoder();
+                }
+            } else if (event == XMLStreamConstants.CHARACTERS && decoder != null) {
+                // Decode the ids straight from the parser buffer
+                decoder.decode(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            } else if (event == XMLStreamConstants.END_ELEMENT && decoder != null && reader.getLocalName().equals("data")) {
+                document.data = decoder.finish();
+                document.width = decoder.getWidth();
+                document.height = decoder.getHeight();
+                decoder = null;
+                layerFound = true; // Only the first layer is read
+            }
+        }
+        if (document == null || !layerFound) {
+            throw new Exception("CSV not found");
+        }
+        return document;
+    }
+
+    public TmxDocument(Map<String, String> attributes) {
+        this.attributes = attributes;
+        this.tilesetAttributes = new LinkedHashMap<>();
+        this.layerAttributes = new LinkedHashMap<>();
+    }
+
+    public String getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    public Map<String, String> getAttributes() {
+        return Collections.unmodifiableMap(attributes);
+    }
+
+    public String getLayerAttribute(String name) {
+        return layerAttributes.get(name);
+    }
+
+    public int getTileWidth() {
+        return Integer.parseInt(attributes.get("tilewidth"));
+    }
+
+    public int getTileHeight() {
+        return Integer.parseInt(attributes.get("tileheight"));
+    }
+
+    public String getTilesetSource() {
+        return tilesetAttributes.get("source");
+    }
+
+    /**
+     * Width of the layer data in tiles.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Height of the layer data in tiles.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTileId(int x, int y) {
+        return data[y * width + x];
+    }
+
+    /**
+     * The tile ids of the layer in row-major order, the array is not copied.
+     */
+    public int[] getData() {
+        return data;
+    }
+}
@@ -0,0 +1,127 @@
+package org.lilosan.tiled;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Contents of a TSX file, streamed once: the tileset attributes, its image and the properties of every tile.
+ */
+public class TsxDocument {
+
+    public static class TileEntry {
+        private final int id;
+        private final Map<String, String> properties;
+
+        public TileEntry(int id, Map<String, String> properties) {
+            this.id = id;
+            this.properties = properties;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getProperty(String name) {
+            return properties.get(name);
+        }
+
+        public Map<String, String> getProperties() {
+            return Collections.unmodifiableMap(properties);
+        }
+
+        public String getOriginalDataMD5() {
+            return properties.get(Tile.ORIGINAL_DATA_MD5);
+        }
+    }
+
+    private final Map<String, String> attributes;
+    private final Map<String, String> imageAttributes;
+    private final List<TileEntry> tiles;
+
+    public static TsxDocument read(File file) throws Exception {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            XMLStreamReader reader = XMLUtils.createStreamReader(in);
+            try {
+                return read(reader, file);
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    private static TsxDocument read(XMLStreamReader reader, File file) throws Exception {
+        TsxDocument document = null;
+        int tileId = -1;
+        Map<String, String> properties = null;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String tagName = reader.getLocalName();
+                if (document == null) {
+                    if (!tagName.equals("tileset")) {
+                        throw new Exception("Not a TSX file: " + file);
+                    }
+                    document = new TsxDocument(XMLUtils.getAttributes(reader));
+                } else if (tagName.equals("image") && properties == null) {
+                    document.imageAttributes.putAll(XMLUtils.getAttributes(reader));
+                } else if (tagName.equals("tile")) {
+                    tileId = Integer.parseInt(XMLUtils.getAttribute(reader, "id"));
+                    properties = new LinkedHashMap<>();
+                } else if (tagName.equals("property") && properties != null) {
+                    String value = XMLUtils.getAttribute(reader, "value");
+                    properties.put(XMLUtils.getAttribute(reader, "name"), (value != null) ? value : "");
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("tile")) {
+                document.tiles.add(new TileEntry(tileId, properties));
+                properties = null;
+            }
+        }
+        if (document == null) {
+            throw new Exception("Not a TSX file: " + file);
+        }
+        return document;
+    }
+
+    public TsxDocument(Map<String, String> attributes) {
+        this.attributes = attributes;
+        this.imageAttributes = new LinkedHashMap<>();
+        this.tiles = new ArrayList<>();
+    }
+
+    public String getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    public String getImageAttribute(String name) {
+        return imageAttributes.get(name);
+    }
+
+    public String getName() {
+        return attributes.get("name");
+    }
+
+    public int getTileWidth() {
+        return Integer.parseInt(attributes.get("tilewidth"));
+    }
+
+    public int getTileHeight() {
+        return Integer.parseInt(attributes.get("tileheight"));
+    }
+
+    public int getColumns() {
+        return Integer.parseInt(attributes.get("columns"));
+    }
+
+    public String getImageSource() {
+        return imageAttributes.get("source");
+    }
+
+    public List<TileEntry> getTiles() {
+        return Collections.unmodifiableList(tiles);
+    }
+}
@@ -6,12 +6,39 @@ import org.w3c.dom.NodeList;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
-import java.io.File;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.*;
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class XMLUtils {
 
+    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = ThreadLocal.withInitial(() -> {
+        try {
+            synchronized (DOCUMENT_BUILDER_FACTORY) { // The factory is not thread-safe, the builders are used by one thread
+                return DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();
+            }
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    static {
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
     //
     // XML Parsing
     //
@@ -20,12 +47,20 @@ public class XMLUtils {
         return node.getAttributes().getNamedItem(name).getNodeValue();
     }
 
+    public static String getAttribute(Node node, String name, String defaultValue) {
+        Node attribute = node.getAttributes().getNamedItem(name);
+        return (attribute != null) ? attribute.getNodeValue() : defaultValue;
+    }
+
     public static Node getRootNode(File file, String tagName) throws Exception {
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        DocumentBuilder db = dbf.newDocumentBuilder();
-        Document tsx = db.parse(file);
-        NodeList tags = tsx.getElementsByTagName(tagName);
-        return tags.item(0);
+        DocumentBuilder db = DOCUMENT_BUILDER.get();
+        try {
+            Document document = db.parse(file);
+            NodeList tags = document.getElementsByTagName(tagName);
+            return tags.item(0);
+        } finally {
+            db.reset();
+        }
     }
 
     public static Node getChildTag(Node node, String tagName) throws Exception {
@@ -46,4 +81,39 @@ public class XMLUtils {
         return tags;
     }
 
+    //
+    // XML Streaming
+    //
+
+    public static XMLStreamReader createStreamReader(InputStream in) throws XMLStreamException {
+        synchronized (INPUT_FACTORY) { // The factories are not guaranteed to be thread-safe, the readers are used by one thread
+            return INPUT_FACTORY.createXMLStreamReader(in);
+        }
+    }
+
+    public static XMLStreamWriter createStreamWriter(Writer out) throws XMLStreamException {
+        synchronized (OUTPUT_FACTORY) {
+            return OUTPUT_FACTORY.createXMLStreamWriter(out);
+        }
+    }
+
+    /**
+     * Opens a buffered UTF-8 writer on top of a file channel, the file is created or truncated.
+     */
+    public static Writer openWriter(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        return new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    public static Map<String, String> getAttributes(XMLStreamReader reader) {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            attributes.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        }
+        return attributes;
+    }
+
+    public static String getAttribute(XMLStreamReader reader, String name) {
+        return reader.getAttributeValue(null, name);
+    }
 }
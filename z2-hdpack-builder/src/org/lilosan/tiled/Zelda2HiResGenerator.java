@@ -1,15 +1,15 @@
 package org.lilosan.tiled;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class Zelda2HiResGenerator {
     public static final String ORIGINAL_ASSETS = "../original-assets";
@@ -25,17 +25,30 @@ public class Zelda2HiResGenerator {
         private final String memoryCheckConstant;
         private final String operation;
         private final String value;
+        private final boolean valueInName;
 
         public Condition(String name, String memoryCheckConstant, String operation, String value) {
+            this(name, memoryCheckConstant, operation, value, true);
+        }
+
+        private Condition(String name, String memoryCheckConstant, String operation, String value, boolean valueInName) {
             this.name = name;
             this.memoryCheckConstant = memoryCheckConstant;
             this.operation = operation;
             this.value = value;
+            this.valueInName = valueInName;
+        }
+
+        /**
+         * A condition named as given instead of name_value, like the ones matching a range of values.
+         */
+        public static Condition named(String name, String memoryCheckConstant, String operation, String value) {
+            return new Condition(name, memoryCheckConstant, operation, value, false);
         }
 
         @Override
         public String toString() {
-            return "<condition>" + name + "_" + value + ",memoryCheckConstant," +  memoryCheckConstant + ","  + operation + "," + value;
+            return "<condition>" + name + ((valueInName) ? "_" + value : "") + ",memoryCheckConstant," +  memoryCheckConstant + ","  + operation + "," + value;
         }
     }
 
@@ -44,14 +57,172 @@ public class Zelda2HiResGenerator {
     public static final String MAP_SLICE_CONSTANT = "3B";
     public static final String HAVE_CANDLE_CONSTANT = "785";
 
+    public static class Options {
+        private int threads = 1;
+        private boolean optimizeRules = true;
+        private boolean watch = false;
+        private Path report = null;
+        private PngEncoder pngEncoder = PngEncoder.forMode("default");
+
+        public static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--threads":
+                        if (i + 1 >= args.length) {
+                            throw new IllegalArgumentException("--threads requires a number of threads");
+                        }
+                        options.threads = Integer.parseInt(args[++i]);
+                        if (options.threads < 1) {
+                            throw new IllegalArgumentException("--threads must be at least 1");
+                        }
+                        break;
+                    case "--png":
+                        if (i + 1 >= args.length) {
+                            throw new IllegalArgumentException("--png requires fast, default or max");
+                        }
+                        options.pngEncoder = PngEncoder.forMode(args[++i]);
+                        break;
+                    case "--png-level":
+                        if (i + 1 >= args.length) {
+                            throw new IllegalArgumentException("--png-level requires a level from 0 to 9");
+                        }
+                        options.pngEncoder = options.pngEncoder.withLevel(Integer.parseInt(args[++i]));
+                        break;
+                    case "--png-filter":
+                        if (i + 1 >= args.length) {
+                            throw new IllegalArgumentException("--png-filter requires none, sub, up, average, paeth or adaptive");
+                        }
+                        options.pngEncoder = options.pngEncoder.withFilter(PngEncoder.Filter.valueOf(args[++i].toUpperCase()));
+                        break;
+                    case "--report":
+                        if (i + 1 >= args.length) {
+                            throw new IllegalArgumentException("--report requires the file to write the report to");
+                        }
+                        options.report = Path.of(args[++i]);
+                        break;
+                    case "--watch":
+                        options.watch = true;
+                        break;
+                    case "--plain-rules":
+                        options.optimizeRules = false;
+                        break;
+                    case "--png-serial":
+                        options.pngEncoder = options.pngEncoder.withParallel(false);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument: " + args[i]);
+                }
+            }
+            return options;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public PngEncoder getPngEncoder() {
+            return pngEncoder;
+        }
+
+        public boolean isOptimizeRules() {
+            return optimizeRules;
+        }
+
+        public boolean isWatch() {
+            return watch;
+        }
+
+        /**
+         * The file to write the build metrics to, or null.
+         */
+        public Path getReport() {
+            return report;
+        }
+    }
+
     public static void main(String args[]) throws Exception {
-        StringBuilder hires = new StringBuilder();
+        Options options = Options.parse(args);
+
+        // Custom maps replace the original ones, every background is generated once from this view
+        AssetCatalog catalog = AssetCatalog.scan(ORIGINAL_ASSETS, CUSTOM_ASSETS);
+        BuildManifest manifest = BuildManifest.load(HDPACK_ASSETS);
+        build(options, catalog, manifest, true);
+        if (options.isWatch()) {
+            watch(options, catalog, manifest);
+        }
+    }
+
+    /**
+     * Rebuilds the pack whenever the custom assets change. The tilesets, the catalog and the hashes of the
+     * unchanged files are kept between builds, so only the backgrounds of the changed maps and tilesets are rendered.
+     */
+    private static void watch(Options options, AssetCatalog catalog, BuildManifest manifest) throws Exception {
+        try (AssetWatcher watcher = new AssetWatcher(Path.of(CUSTOM_ASSETS))) {
+            while (true) {
+                System.out.println("Watching " + CUSTOM_ASSETS + " for changes");
+                Set<Path> changes = watcher.awaitChanges();
+                boolean catalogChanged = false;
+                boolean loadingScreenChanged = false;
+                Set<String> areas = new TreeSet<>();
+                for (Path change:changes) {
+                    manifest.invalidate(change);
+                    Path relative = Path.of(CUSTOM_ASSETS).relativize(change);
+                    areas.add(relative.getName(0).toString());
+                    // New or deleted maps change the catalog, a directory event may hide them. The tilesets of the maps
+                    // are chosen by the scan too, a new custom tileset replaces the original one of its area
+                    catalogChanged |= change.toString().endsWith(".tmx") || change.toString().endsWith(".tsx") || Files.isDirectory(change) || !Files.exists(change);
+                    loadingScreenChanged |= relative.getName(0).toString().equals("-loading-screen");
+                }
+                System.out.println("Changed: " + String.join(", ", areas));
+                if (catalogChanged) {
+                    catalog = AssetCatalog.scan(ORIGINAL_ASSETS, CUSTOM_ASSETS);
+                }
+                if (loadingScreenChanged) {
+                    copyDirectory(CUSTOM_ASSETS + "/-loading-screen", HDPACK_ASSETS + "/-loading-screen", true);
+                }
+                if (changes.stream().anyMatch(change -> change.toString().endsWith(".png"))) {
+                    // The cached tilesets only notice the changes of their TSX file, not of their image
+                    TilesetCache.getShared().clear();
+                }
+                try {
+                    build(options, catalog, manifest, false);
+                } catch (Exception e) {
+                    // Keep watching, the next save may fix it
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static void build(Options options, AssetCatalog catalog, BuildManifest manifest, boolean copyAssets) throws Exception {
+        BuildMetrics.getShared().reset();
+
+        // hires.txt is written as it is generated, into a partial file until the build completes
+        HiresWriter hires = HiresWriter.open(Path.of(HDPACK_ASSETS + "/" + NAME));
+        try {
+            build(options, hires, catalog, manifest, copyAssets);
+            hires.commit();
+        } catch (Exception e) {
+            hires.fail(e);
+            throw e;
+        } finally {
+            if (options.getReport() != null) {
+                BuildMetrics.getShared().writeReport(options.getReport());
+                System.out.println("Report written to: " + options.getReport());
+            }
+        }
+    }
+
+    private static void build(Options options, HiresWriter hires, AssetCatalog catalog, BuildManifest manifest, boolean copyAssets) throws Exception {
         hires.append(getHeader()).append("\n");
 
+        RuleOptimizer ruleOptimizer = new RuleOptimizer(options.isOptimizeRules());
+
         hires.append("\n").append("\n");
 
         hires.append("# Location conditions").append("\n");
-        for (String locationCode:getLocationCodes()) {
+        for (String locationCode:catalog.getLocationCodes()) {
             Condition locationCondition = new Condition("LOCATION", LOCATION_CODE_CONSTANT, "==", locationCode);
             hires.append(locationCondition).append("\n");
         }
@@ -59,7 +230,7 @@ public class Zelda2HiResGenerator {
         hires.append("\n").append("\n");
 
         hires.append("# Map conditions").append("\n");
-        for (String mapCode:getMapCodes()) {
+        for (String mapCode:catalog.getMapCodes()) {
             Condition mapCondition = new Condition("MAP", MAP_CODE_CONSTANT, "==", mapCode);
             hires.append(mapCondition).append("\n");
         }
@@ -67,8 +238,7 @@ public class Zelda2HiResGenerator {
         hires.append("\n").append("\n");
 
         hires.append("# Map Slice conditions").append("\n");
-        for (String mapSliceCode:getMapSliceCodes()) {
-            Condition mapSlice = new Condition("MAP_SLICE", MAP_SLICE_CONSTANT, "==", mapSliceCode);
+        for (Condition mapSlice:ruleOptimizer.getMapSliceConditions()) {
             hires.append(mapSlice).append("\n");
         }
 
@@ -80,8 +250,10 @@ public class Zelda2HiResGenerator {
         hires.append("\n").append("\n");
 
         hires.append("# Loading Screen").append("\n");
-        hires.append(Files.readString(Path.of(CUSTOM_ASSETS + "/hires-loading-screen.txt"), StandardCharsets.UTF_8));
-        copyDirectory(CUSTOM_ASSETS + "/-loading-screen", HDPACK_ASSETS + "/-loading-screen");
+        hires.appendFile(Path.of(CUSTOM_ASSETS + "/hires-loading-screen.txt"));
+        if (copyAssets) {
+            copyDirectory(CUSTOM_ASSETS + "/-loading-screen", HDPACK_ASSETS + "/-loading-screen");
+        }
 
         hires.append("\n").append("\n");
 
@@ -102,127 +274,264 @@ public class Zelda2HiResGenerator {
 //        }
 
         hires.append("# Sprites").append("\n");
-        hires.append(Files.readString(Path.of(CUSTOM_ASSETS + "/town-folk.txt"), StandardCharsets.UTF_8));
+        hires.appendFile(Path.of(CUSTOM_ASSETS + "/town-folk.txt"));
         hires.append("\n").append("\n");
-        copyDirectory(ORIGINAL_ASSETS + "/sprites", HDPACK_ASSETS + "/sprites");
+        if (copyAssets) {
+            copyDirectory(ORIGINAL_ASSETS + "/sprites", HDPACK_ASSETS + "/sprites");
+        }
 
         hires.append("# Map Backgrounds").append("\n");
-        addBackgrounds(hires, getMapBackgrounds(ORIGINAL_ASSETS), ORIGINAL_ASSETS);
-        addBackgrounds(null, getMapBackgrounds(CUSTOM_ASSETS), CUSTOM_ASSETS);
-
-        Files.write(Path.of(HDPACK_ASSETS + "/" + NAME), hires.toString().getBytes(StandardCharsets.UTF_8));
+        PngEncoder pngEncoder = options.getPngEncoder();
+        ForkJoinPool pool = (options.getThreads() > 1) ? new ForkJoinPool(options.getThreads()) : null;
+        try {
+            addBackgrounds(hires, catalog.getBackgrounds(), manifest, pngEncoder, ruleOptimizer, pool);
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+            // Keep whatever was generated so far, even if a map fails
+            manifest.save();
+        }
     }
 
     public static void copyDirectory(String sourceDirectoryLocation, String destinationDirectoryLocation)
             throws IOException {
+        copyDirectory(sourceDirectoryLocation, destinationDirectoryLocation, false);
+    }
+
+    /**
+     * Copies the directory, with replace the files already in the destination are overwritten.
+     */
+    public static void copyDirectory(String sourceDirectoryLocation, String destinationDirectoryLocation, boolean replace)
+            throws IOException {
 
+        BuildMetrics metrics = BuildMetrics.getShared();
+        long start = metrics.start();
         Files.walk(Paths.get(sourceDirectoryLocation))
                 .forEach(source -> {
                     Path destination = Paths.get(destinationDirectoryLocation, source.toString()
                             .substring(sourceDirectoryLocation.length()));
                     try {
-                        Files.copy(source, destination);
+                        if (replace && Files.isDirectory(source)) {
+                            Files.createDirectories(destination);
+                        } else if (replace) {
+                            Files.copy(source, destination, StandardCopyOption.REPLACE_EXISTING);
+                        } else {
+                            Files.copy(source, destination);
+                        }
+                        if (Files.isRegularFile(destination)) {
+                            metrics.add(BuildMetrics.Counter.BYTES_WRITTEN, Files.size(destination));
+                        }
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
                 });
+        metrics.stop(BuildMetrics.Phase.FILE_COPY, start);
     }
 
-    private static void addBackgrounds(StringBuilder hires, List<String> originalBackgrounds, String backgroundsRoot) throws Exception {
-
-        for (String background: originalBackgrounds) {
-            System.out.println("Processing: " + backgroundsRoot + "/" + background);
+    /**
+     * A generated background image, with whether its file is on disk.
+     */
+    private static class RenderedBackground {
+        private final AssetCatalog.Background background;
+        private final boolean dark;
+        private final int index;
+        private final String name;
+        private final BuildManifest.Entry inputs;
+        private final String pixelsMD5;
+        private final boolean written;
+
+        private RenderedBackground(AssetCatalog.Background background, boolean dark, int index, String name, BuildManifest.Entry inputs, String pixelsMD5, boolean written) {
+            this.background = background;
+            this.dark = dark;
+            this.index = index;
+            this.name = name;
+            this.inputs = inputs;
+            this.pixelsMD5 = pixelsMD5;
+            this.written = written;
+        }
+    }
 
-            boolean isCave = background.substring(0, background.indexOf('/')).equals("cave");
-            String backgroundPNG = makeHDPackBackground(background, backgroundsRoot, false);
-            String backgroundPNGDark = null;
-            if(isCave) {
-                backgroundPNGDark = makeHDPackBackground(background, backgroundsRoot, isCave);
+    /**
+     * Generates the backgrounds and writes their rules, when a pool is given the backgrounds are rendered
+     * in parallel and the rules of each one are written as soon as it and the ones before it are done.
+     * Backgrounds with the same pixels share the file of the first one.
+     */
+    private static void addBackgrounds(HiresWriter hires, List<AssetCatalog.Background> backgrounds, BuildManifest manifest, PngEncoder pngEncoder, RuleOptimizer ruleOptimizer, ForkJoinPool pool) throws Exception {
+        BackgroundRegistry registry = new BackgroundRegistry();
+        List<List<RenderedBackground>> rendered = new ArrayList<>();
+        if (pool == null) {
+            for (int i = 0; i < backgrounds.size(); i++) {
+                rendered.add(makeHDPackBackgrounds(backgrounds.get(i), i, manifest, pngEncoder, registry));
+                hires.append(ruleOptimizer.removeWrittenRules(getBackgroundRules(rendered.get(i), registry, ruleOptimizer)));
             }
-
-            if (hires == null) {
-                continue;
+        } else {
+            List<Future<List<RenderedBackground>>> futures = new ArrayList<>();
+            for (int i = 0; i < backgrounds.size(); i++) {
+                AssetCatalog.Background background = backgrounds.get(i);
+                int index = i;
+                futures.add(pool.submit(() -> makeHDPackBackgrounds(background, index, manifest, pngEncoder, registry)));
             }
-            String name = background.substring(background.indexOf("/") + 1, background.indexOf(".tmx"));
-            String[] locationCodes = name.split("-")[0].split("\\|");
-            String[] mapCodes = name.split("-")[1].split("\\|");
-
-            for (String locationCode:locationCodes) {
-                for(String mapCode:mapCodes) {
-                    for (String mapSliceCode:getMapSliceCodes()) {
-                        int leftOffset = 0;
-                        int topOffset = 0;
-                        String sliceRule = "";
-
-                        switch (mapSliceCode) {
-                            case "0":
-                                leftOffset = 0;
-                                topOffset = 0;
-                                sliceRule = "MAP_SLICE_0&!MAP_SLICE_1&!MAP_SLICE_2&!MAP_SLICE_3";
-                                break;
-                            case "1":
-                                leftOffset = 0;
-                                topOffset = 0;
-                                sliceRule = "!MAP_SLICE_0&MAP_SLICE_1&!MAP_SLICE_2&!MAP_SLICE_3";
-                                break;
-                            case "2":
-                                leftOffset = 0;
-                                topOffset = 240;
-                                sliceRule = "!MAP_SLICE_0&!MAP_SLICE_1&MAP_SLICE_2&!MAP_SLICE_3";
-                                break;
-                            case "3":
-                                leftOffset = 512;
-                                topOffset = 0;
-                                sliceRule = "!MAP_SLICE_0&!MAP_SLICE_1&!MAP_SLICE_2&MAP_SLICE_3";
-                                break;
-                        }
+            for (Future<List<RenderedBackground>> future:futures) {
+                try {
+                    rendered.add(future.get());
+                } catch (ExecutionException e) {
+                    throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+                }
+                hires.append(ruleOptimizer.removeWrittenRules(getBackgroundRules(rendered.get(rendered.size() - 1), registry, ruleOptimizer)));
+            }
+        }
 
-                        String backgroundCondition = "[" + "LOCATION_" + locationCode + "&"
-                                                        + "MAP_" + mapCode + "&"
-                                                        + sliceRule + ""
-                                                        + ((isCave)?"&HAVE_CANDLE_1":"") + "]"
-                                                        + "<background>" + backgroundPNG + ",1,1,1," + STATIC_BACKGROUND_LAYER + "," + leftOffset + "," + topOffset;
-                        hires.append(backgroundCondition).append("\n");
-                        if (isCave) {
-                            String backgroundConditionDark = "[" + "LOCATION_" + locationCode + "&"
-                                    + "MAP_" + mapCode + "&"
-                                    + sliceRule + ""
-                                    + ((isCave)?"&!HAVE_CANDLE_1":"") + "]"
-                                    + "<background>" + backgroundPNGDark + ",1,1,1," + STATIC_BACKGROUND_LAYER + "," + leftOffset + "," + topOffset;
-                            hires.append(backgroundConditionDark).append("\n");
-                        }
+        //
+        // Only the shared files are kept
+        //
+        for (List<RenderedBackground> images:rendered) {
+            for (RenderedBackground image:images) {
+                Path file = Path.of(HDPACK_ASSETS + "/" + image.name);
+                if (registry.resolve(image.pixelsMD5, image.name).equals(image.name)) {
+                    if (!image.written) {
+                        // It was sharing the file of a background that changed
+                        makeHDPackBackground(image.background, image.dark, image.index, manifest, pngEncoder, null);
                     }
+                } else {
+                    Files.deleteIfExists(file);
+                    manifest.invalidate(file);
+                    manifest.update(image.name, image.inputs, image.pixelsMD5, BuildManifest.SHARED);
+                }
+            }
+        }
+        BuildMetrics.setArea(null);
+        System.out.println("Unique backgrounds: " + registry.size());
+    }
 
+    private static List<RenderedBackground> makeHDPackBackgrounds(AssetCatalog.Background background, int index, BuildManifest manifest, PngEncoder pngEncoder, BackgroundRegistry registry) throws Exception {
+        System.out.println("Processing: " + background.getTmx().getPath());
+        BuildMetrics.setArea(background.getArea());
+        BuildMetrics.getShared().increment(BuildMetrics.Counter.MAPS_PROCESSED);
 
+        List<RenderedBackground> images = new ArrayList<>();
+        images.add(makeHDPackBackground(background, false, index * 2, manifest, pngEncoder, registry));
+        if (background.isCave()) {
+            images.add(makeHDPackBackground(background, true, index * 2 + 1, manifest, pngEncoder, registry));
+        }
+        return images;
+    }
+
+    private static String getBackgroundRules(List<RenderedBackground> images, BackgroundRegistry registry, RuleOptimizer ruleOptimizer) {
+        AssetCatalog.Background background = images.get(0).background;
+        boolean isCave = background.isCave();
+        String backgroundPNG = registry.resolve(images.get(0).pixelsMD5, images.get(0).name);
+        String backgroundPNGDark = null;
+        if (isCave) {
+            backgroundPNGDark = registry.resolve(images.get(1).pixelsMD5, images.get(1).name);
+        }
+
+        StringBuilder hires = new StringBuilder();
+        String[] locationCodes = background.getLocationCodes();
+        String[] mapCodes = background.getMapCodes();
+
+        for (String locationCode:locationCodes) {
+            for(String mapCode:mapCodes) {
+                for (RuleOptimizer.MapSlice mapSlice:ruleOptimizer.getMapSlices()) {
+                    int leftOffset = mapSlice.getLeftOffset();
+                    int topOffset = mapSlice.getTopOffset();
+                    String sliceRule = mapSlice.getRule();
+
+                    String backgroundCondition = "[" + "LOCATION_" + locationCode + "&"
+                                                    + "MAP_" + mapCode + "&"
+                                                    + sliceRule + ""
+                                                    + ((isCave)?"&HAVE_CANDLE_1":"") + "]"
+                                                    + "<background>" + backgroundPNG + ",1,1,1," + STATIC_BACKGROUND_LAYER + "," + leftOffset + "," + topOffset;
+                    hires.append(backgroundCondition).append("\n");
+                    if (isCave) {
+                        String backgroundConditionDark = "[" + "LOCATION_" + locationCode + "&"
+                                + "MAP_" + mapCode + "&"
+                                + sliceRule + ""
+                                + ((isCave)?"&!HAVE_CANDLE_1":"") + "]"
+                                + "<background>" + backgroundPNGDark + ",1,1,1," + STATIC_BACKGROUND_LAYER + "," + leftOffset + "," + topOffset;
+                        hires.append(backgroundConditionDark).append("\n");
+                    }
                 }
+
+
             }
-            hires.append("\n");
         }
+        hires.append("\n");
+        return hires.toString();
     }
 
-    private static String makeHDPackBackground(String background, String backgroundsRoot, boolean dark) throws Exception {
-        String area = background.substring(0, background.indexOf('/'));
-        String tsx = backgroundsRoot + "/" + area + "/" + area + ((dark)?"-dark":"") + ".tsx";
-        TiledTSX tsxFile = TiledTSX.getInstance(new File(tsx));
-        String tmx = backgroundsRoot + "/" + background;
-        TiledTMX tmxFile = TiledTMX.getInstance(new File(tmx));
+    /**
+     * Renders the background unless it is up-to-date, its file is only written if no background before it
+     * has the same pixels. Without a registry it is always written.
+     */
+    private static RenderedBackground makeHDPackBackground(AssetCatalog.Background background, boolean dark, int index, BuildManifest manifest, PngEncoder pngEncoder, BackgroundRegistry registry) throws Exception {
+        String area = background.getArea();
+        BuildMetrics metrics = BuildMetrics.getShared();
+        BuildMetrics.setArea(area);
+        File tsx = background.getTsx(dark);
+        File tmx = background.getTmx();
+        String relativePathFilename = background.getName().replace(".tmx", ((dark)?"-dark.png":".png"));
+        Path hdPackFile = Path.of(HDPACK_ASSETS + "/" + relativePathFilename);
+
+        // Tilesets are shared by all the maps of an area, they are only loaded once
+        TiledTSX tsxFile = TiledTSX.getInstance(tsx);
+
+        // Skip backgrounds whose inputs and output have not changed since the last build,
+        // the settings include the pixel format since palette tilesets are written as palette PNGs
+        Path tilesetPNG = tsx.toPath().resolveSibling(tsxFile.getImageSource());
+        BuildManifest.Entry inputs = manifest.getInputs(((tsxFile.isIndexed()) ? "indexed-" : "argb-") + pngEncoder, tmx.toPath(), tsx.toPath(), tilesetPNG);
+        if (registry != null && manifest.isUpToDate(relativePathFilename, inputs, hdPackFile)) {
+            System.out.println("Up-to-date: " + relativePathFilename);
+            metrics.increment(BuildMetrics.Counter.UP_TO_DATE);
+            BuildManifest.Entry entry = manifest.getEntry(relativePathFilename);
+            registry.claim(entry.getPixelsMD5(), index);
+            return new RenderedBackground(background, dark, index, relativePathFilename, inputs, entry.getPixelsMD5(), !entry.isShared());
+        }
 
-        BufferedImage image = tmxFile.getBufferedImage(tsxFile, 0);
-        int[] imageRGB = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
-        int[] imageSectionRGB = image.getRGB(512*SCALE, 0, (int)(399.5 * SCALE), image.getHeight(), null, 0, image.getWidth());
+        TiledTMX tmxFile = TiledTMX.getInstance(tmx);
+        BufferedImage hdPackImage = composeBackground(tmxFile, tsxFile);
 
-        int SPACING = 16 * SCALE;
+        long start = metrics.start();
+        String pixelsMD5 = BuildManifest.getPixelsMD5(hdPackImage);
+        metrics.stop(BuildMetrics.Phase.PIXELS_HASH, start);
+        if (registry != null && !registry.claim(pixelsMD5, index)) {
+            // A background before this one has the same pixels, its file is used instead
+            return new RenderedBackground(background, dark, index, relativePathFilename, inputs, pixelsMD5, false);
+        }
 
-        BufferedImage hdPackImage = new BufferedImage(image.getWidth(), image.getHeight() * 2 + (SPACING * 4), BufferedImage.TYPE_INT_ARGB);
-        hdPackImage.setRGB(0, SPACING * 2, image.getWidth(), image.getHeight(), imageRGB, 0, image.getWidth());
-        hdPackImage.setRGB(0, image.getHeight() + (SPACING * 4), image.getWidth(), image.getHeight(), imageRGB, 0, image.getWidth());
-        hdPackImage.setRGB(0, image.getHeight() + (SPACING * 4), (int)(399.5 * SCALE), image.getHeight(), imageSectionRGB, 0, image.getWidth());
-        
         File directory = new File(HDPACK_ASSETS + "/" + area);
         directory.mkdir();
-        String relativePathFilename = background.replace(".tmx", ((dark)?"-dark.png":".png"));
-        ImageIO.write(hdPackImage, "png", new FileOutputStream(HDPACK_ASSETS + "/" + relativePathFilename));
-        return relativePathFilename;
+        MessageDigest outputMD5 = BuildManifest.newMD5();
+        start = metrics.start();
+        try (OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(hdPackFile.toFile())), outputMD5)) {
+            pngEncoder.write(hdPackImage, out);
+        }
+        metrics.add(BuildMetrics.Counter.BYTES_WRITTEN, Files.size(hdPackFile));
+        metrics.stop(BuildMetrics.Phase.PNG_ENCODE, start);
+        manifest.invalidate(hdPackFile);
+        manifest.update(relativePathFilename, inputs, pixelsMD5, BuildManifest.toHex(outputMD5.digest()));
+        return new RenderedBackground(background, dark, index, relativePathFilename, inputs, pixelsMD5, true);
+    }
+
+    /**
+     * Lays out the map as the HD pack expects it: the map, then below it the copy shown for the last map slice.
+     */
+    public static BufferedImage composeBackground(TiledTMX tmxFile, TiledTSX tsxFile) {
+        // The map is drawn once in the final layout, the bottom copy is made in place:
+        // its first columns come from the middle of the map, the rest from the same columns
+        int SPACING = 16 * SCALE;
+        int width = tmxFile.getWidth() * tsxFile.getTileWidth();
+        int height = tmxFile.getHeight() * tsxFile.getTileHeight();
+        int sectionWidth = (int)(399.5 * SCALE);
+        int top = SPACING * 2;
+        int bottom = height + (SPACING * 4);
+
+        int hdPackHeight = height * 2 + (SPACING * 4);
+        BufferedImage hdPackImage = (tsxFile.isIndexed()) ? IndexedImages.create(tsxFile.getColorModel(), width, hdPackHeight) : new BufferedImage(width, hdPackHeight, BufferedImage.TYPE_INT_ARGB);
+        tmxFile.draw(tsxFile, hdPackImage, 0, top);
+        TileRenderer.copy(hdPackImage, 512*SCALE, top, sectionWidth, height, 0, bottom);
+        TileRenderer.copy(hdPackImage, sectionWidth, top, width - sectionWidth, height, sectionWidth, bottom);
+        return hdPackImage;
     }
 
     public static String getHeader() {
@@ -233,21 +542,6 @@ public class Zelda2HiResGenerator {
         return header.toString();
     }
 
-    public static List<String> getMapBackgrounds(String areasRoot) {
-        List<String> result = new ArrayList<>();
-        File areas = new File(areasRoot);
-        for (File area:areas.listFiles()) {
-            if (area.isDirectory()) {
-                for (File map : area.listFiles()) {
-                    if (map.getName().endsWith(".tmx") && !map.getName().equals(area.getName() + ".tmx") && !area.getName().equals("overworld")) {
-                        result.add(area.getName()  + "/" + map.getName());
-                    }
-                }
-            }
-        }
-        return result;
-    }
-
     public static List<String> getMapSliceCodes() {
         List<String> values = new ArrayList<>();
         values.add("0");
@@ -256,42 +550,4 @@ public class Zelda2HiResGenerator {
         values.add("3");
         return values;
     }
-
-    public static Set<String> getLocationCodes() {
-        Set<String> result = new HashSet<>();
-        File areas = new File(ORIGINAL_ASSETS);
-        for (File area:areas.listFiles()) {
-            if (area.isDirectory()) {
-                for (File map : area.listFiles()) {
-                    if (map.getName().endsWith(".tmx") && !map.getName().equals(area.getName() + ".tmx") && !area.getName().equals("overworld")) {
-                        String name = map.getName().substring(0, map.getName().indexOf(".tmx"));
-                        String[] locationCodes = name.split("-")[0].split("\\|");
-                        for (String locationCode:locationCodes) {
-                            result.add(locationCode);
-                        }
-                    }
-                }
-            }
-        }
-        return result;
-    }
-
-    public static Set<String> getMapCodes() {
-        Set<String> result = new HashSet<>();
-        File areas = new File(ORIGINAL_ASSETS);
-        for (File area:areas.listFiles()) {
-            if (area.isDirectory()) {
-                for (File map : area.listFiles()) {
-                    if (map.getName().endsWith(".tmx") && !map.getName().equals(area.getName() + ".tmx") && !area.getName().equals("overworld")) {
-                        String name = map.getName().substring(0, map.getName().indexOf(".tmx"));
-                        String[] mapCodes = name.split("-")[1].split("\\|");
-                        for (String mapCode:mapCodes) {
-                            result.add(mapCode);
-                        }
-                    }
-                }
-            }
-        }
-        return result;
-    }
 }
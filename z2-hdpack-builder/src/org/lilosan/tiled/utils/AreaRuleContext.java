@@ -0,0 +1,205 @@
+package org.lilosan.tiled.utils;
+
+import org.lilosan.tiled.BuildMetrics;
+import org.lilosan.tiled.TiledTMX;
+import org.lilosan.tiled.TsxDocument;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * The tileset index and the maps of an area while its rules are applied. The maps are read once,
+ * the rules change them in memory and the changed maps are written once, after the last rule.
+ * With a pool the maps of every rule are processed in parallel, a rule starts once the previous one is done.
+ */
+public class AreaRuleContext {
+
+    private final File tsxFile;
+    private final List<File> tmxFiles; // null for all the maps next to the tileset
+    private final Map<File, TiledTMX> mapsByFile;
+    private final Set<File> changedMaps;
+    private boolean mapsLoaded;
+    private TsxDocument tileset;
+    private Map<String, Integer> idByMD5;
+    private ForkJoinPool pool;
+    private StringBuilder log; // null to print right away
+
+    /**
+     * The rules apply to all the maps in the directory of the tileset, listed when they are first needed.
+     */
+    public AreaRuleContext(File tsxFile) {
+        this(tsxFile, null);
+    }
+
+    public AreaRuleContext(File tsxFile, List<File> tmxFiles) {
+        this.tsxFile = tsxFile;
+        this.tmxFiles = tmxFiles;
+        this.mapsByFile = new LinkedHashMap<>();
+        this.changedMaps = new LinkedHashSet<>();
+    }
+
+    /**
+     * Processes the maps on the pool, the log of the area is kept until {@link #takeLog()}
+     * so areas processed at the same time don't mix their lines.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+        this.log = (pool != null) ? new StringBuilder() : null;
+    }
+
+    public void log(String line) {
+        if (log == null) {
+            System.out.println(line);
+        } else {
+            log.append(line).append(System.lineSeparator());
+        }
+    }
+
+    /**
+     * Returns the lines logged since the last call, empty when they were printed.
+     */
+    public String takeLog() {
+        if (log == null) {
+            return "";
+        }
+        String lines = log.toString();
+        log.setLength(0);
+        return lines;
+    }
+
+    /**
+     * Runs the tasks on the pool, or one after the other without one, and returns their results in order.
+     * The tasks record their metrics into the area of the calling thread.
+     */
+    public <T> List<T> invokeAll(List<Callable<T>> tasks) throws Exception {
+        List<T> results = new ArrayList<>();
+        if (pool == null) {
+            for (Callable<T> task:tasks) {
+                results.add(task.call());
+            }
+            return results;
+        }
+        String area = BuildMetrics.getArea();
+        List<Future<T>> futures = new ArrayList<>();
+        for (Callable<T> task:tasks) {
+            futures.add(pool.submit(() -> {
+                // A waiting thread may run tasks of other areas, its area is restored after each one
+                String previousArea = BuildMetrics.getArea();
+                BuildMetrics.setArea(area);
+                try {
+                    return task.call();
+                } finally {
+                    BuildMetrics.setArea(previousArea);
+                }
+            }));
+        }
+        try {
+            for (Future<T> future:futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+        }
+        return results;
+    }
+
+    public File getTsxFile() {
+        return tsxFile;
+    }
+
+    public File getDirectory() {
+        return tsxFile.getAbsoluteFile().getParentFile();
+    }
+
+    public String getTsxName() {
+        return tsxFile.getName().substring(0, tsxFile.getName().indexOf(".tsx"));
+    }
+
+    public TsxDocument getTileset() throws Exception {
+        if (tileset == null) {
+            tileset = TsxDocument.read(tsxFile);
+        }
+        return tileset;
+    }
+
+    /**
+     * The ids of the tiles of the tileset by their original-data-md5.
+     */
+    public Map<String, Integer> getIdByMD5() throws Exception {
+        if (idByMD5 == null) {
+            idByMD5 = new HashMap<>();
+            for (TsxDocument.TileEntry tileMetadata:getTileset().getTiles()) {
+                String md5 = tileMetadata.getOriginalDataMD5();
+                if (md5 != null) {
+                    idByMD5.put(md5, tileMetadata.getId());
+                }
+            }
+        }
+        return idByMD5;
+    }
+
+    /**
+     * The TSX file was written again, its index is read again when next needed.
+     */
+    public void tilesetChanged() {
+        tileset = null;
+        idByMD5 = null;
+    }
+
+    /**
+     * The maps by their file, the ones not in memory yet are read.
+     */
+    public Map<File, TiledTMX> getMaps() throws Exception {
+        if (!mapsLoaded) {
+            List<File> files = tmxFiles;
+            if (files == null) {
+                files = new ArrayList<>();
+                for (File file:getDirectory().listFiles()) {
+                    if (file.getName().endsWith(".tmx")) {
+                        files.add(file);
+                    }
+                }
+            }
+            List<File> missingFiles = new ArrayList<>();
+            List<Callable<TiledTMX>> reads = new ArrayList<>();
+            for (File file:files) {
+                if (!mapsByFile.containsKey(toKey(file))) {
+                    missingFiles.add(file);
+                    reads.add(() -> TiledTMX.getInstance(file));
+                }
+            }
+            List<TiledTMX> maps = invokeAll(reads);
+            for (int i = 0; i < maps.size(); i++) {
+                mapsByFile.put(toKey(missingFiles.get(i)), maps.get(i));
+            }
+            mapsLoaded = true;
+        }
+        return Collections.unmodifiableMap(mapsByFile);
+    }
+
+    /**
+     * Replaces a map, it is written by {@link #write()}.
+     */
+    public void setMap(File file, TiledTMX map) {
+        mapsByFile.put(toKey(file), map);
+        changedMaps.add(toKey(file));
+    }
+
+    private static File toKey(File file) {
+        return file.toPath().toAbsolutePath().normalize().toFile();
+    }
+
+    /**
+     * Writes the maps changed by the rules.
+     */
+    public void write() throws Exception {
+        for (File file:changedMaps) {
+            mapsByFile.get(file).write(file.toPath());
+        }
+        changedMaps.clear();
+    }
+}
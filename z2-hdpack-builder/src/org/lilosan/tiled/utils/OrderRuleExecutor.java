@@ -1,37 +1,40 @@
 package org.lilosan.tiled.utils;
 
+import org.lilosan.tiled.BuildMetrics;
 import org.lilosan.tiled.Tile;
 import org.lilosan.tiled.TiledTMX;
 import org.lilosan.tiled.TiledTSX;
-import org.w3c.dom.Node;
+import org.lilosan.tiled.TsxDocument;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.awt.image.Raster;
 import java.io.File;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-
-import static org.lilosan.tiled.TiledTMX.getCSV;
-import static org.lilosan.tiled.TiledTSX.*;
+import java.util.concurrent.Callable;
 
 public class OrderRuleExecutor {
 
-    public static void run(File afterRulesAreaDirectory, File rulesTsxFile, File rulesPngFile, List<File> areaTMXs) throws Exception {
-        System.out.println("Order Rule");
-        System.out.println("processFile: " + rulesTsxFile.getName());
+    /**
+     * Writes the tileset in the directory of the context and puts the maps in it, they are written by the context.
+     */
+    public static void run(AreaRuleContext context, File rulesTsxFile, File rulesPngFile, List<File> areaTMXs) throws Exception {
+        File afterRulesAreaDirectory = context.getDirectory();
+        context.log("Order Rule");
+        context.log("processFile: " + rulesTsxFile.getName());
         //
         // The TSX File contains the tiles in logical order
         //
+        TsxDocument rulesTsx = TsxDocument.read(rulesTsxFile);
         Map<Integer, Integer> physicalToLogicalId = new HashMap<>();
         Map<Integer, String> physicalIdToMD5 = new HashMap<>();
-        List<Node> tilesMetadata = getTiles(rulesTsxFile);
+        List<TsxDocument.TileEntry> tilesMetadata = rulesTsx.getTiles();
         for (int logicalId = 0; logicalId < tilesMetadata.size(); logicalId++) {
-            int physicalId = getId(tilesMetadata.get(logicalId));
-            String md5 = getOriginalDataMD5(tilesMetadata.get(logicalId));
+            int physicalId = tilesMetadata.get(logicalId).getId();
+            String md5 = tilesMetadata.get(logicalId).getOriginalDataMD5();
             physicalToLogicalId.put(physicalId, logicalId);
             if (md5 != null) {
                 physicalIdToMD5.put(physicalId, md5);
@@ -41,8 +44,8 @@ public class OrderRuleExecutor {
         //
         // The PNG File contains the tiles in physical order
         //
-        int tileWidth = getTileWidth(rulesTsxFile);
-        int tileHeight = getTileHeight(rulesTsxFile);
+        int tileWidth = rulesTsx.getTileWidth();
+        int tileHeight = rulesTsx.getTileHeight();
         Tile[] tiles = new Tile[tilesMetadata.size()];
 
         BufferedImage tilesImages = ImageIO.read(rulesPngFile);
@@ -67,33 +70,48 @@ public class OrderRuleExecutor {
         // Putting it all together and Writing the output
         //
         String tsxName = rulesTsxFile.getName().substring(0, rulesTsxFile.getName().indexOf(".tsx"));
-        int columns = getColumns(rulesTsxFile);
+        int columns = rulesTsx.getColumns();
         TiledTSX areaTileset = new TiledTSX(tsxName, 1, tileWidth, tileHeight, columns);
         for (Tile tile:tiles) {
             areaTileset.add(tile, true);
         }
 
+        BuildMetrics metrics = BuildMetrics.getShared();
         File tileSetTSXImage = new File(afterRulesAreaDirectory.getAbsolutePath() + "/" + afterRulesAreaDirectory.getName() + ".png");
-        ImageIO.write(areaTileset.getBufferedImage(), "png", tileSetTSXImage);
+        BufferedImage tileSetImage = areaTileset.getBufferedImage();
+        long start = metrics.start();
+        ImageIO.write(tileSetImage, "png", tileSetTSXImage);
+        metrics.add(BuildMetrics.Counter.BYTES_WRITTEN, tileSetTSXImage.length());
+        metrics.stop(BuildMetrics.Phase.PNG_ENCODE, start);
         File tileSetTSXMeta = new File(afterRulesAreaDirectory.getAbsolutePath() + "/" + afterRulesAreaDirectory.getName() + ".tsx");
-        Files.write(tileSetTSXMeta.toPath(), areaTileset.getTSX().getBytes(StandardCharsets.UTF_8));
+        areaTileset.write(tileSetTSXMeta.toPath());
+        context.tilesetChanged();
 
         //
         // Now let's go though the maps
         //
+        List<Callable<TiledTMX>> tasks = new ArrayList<>();
         for (File areaTMX:areaTMXs) {
-            System.out.println("processFile: " + areaTMX.getName());
-            Integer[][] generatedCSV = getCSV(areaTMX);
-            TiledTMX areaMap = new TiledTMX(1, areaTileset.getName(), generatedCSV.length, generatedCSV[0].length, areaTileset.getTileWidth(), areaTileset.getTileHeight());
-            for (int y = 0; y < generatedCSV[0].length; y++) {
-                for (int x = 0; x < generatedCSV.length; x++) {
-                    int xyO = generatedCSV[x][y];
-                    int xyF = physicalToLogicalId.get(generatedCSV[x][y]);
-                    areaMap.add(x, y, physicalToLogicalId.get(generatedCSV[x][y]));
+            tasks.add(() -> {
+                TiledTMX generatedMap = TiledTMX.getInstance(areaTMX);
+                TiledTMX areaMap = new TiledTMX(1, areaTileset.getName(), generatedMap.getWidth(), generatedMap.getHeight(), areaTileset.getTileWidth(), areaTileset.getTileHeight());
+                long mapStart = metrics.start();
+                for (int y = 0; y < generatedMap.getHeight(); y++) {
+                    for (int x = 0; x < generatedMap.getWidth(); x++) {
+                        areaMap.set(x, y, physicalToLogicalId.get(generatedMap.get(x, y)));
+                    }
                 }
-            }
+                metrics.stop(BuildMetrics.Phase.ORDER_RULE, mapStart);
+                metrics.increment(BuildMetrics.Counter.MAPS_PROCESSED);
+                return areaMap;
+            });
+        }
+        List<TiledTMX> areaMaps = context.invokeAll(tasks);
+        for (int i = 0; i < areaTMXs.size(); i++) {
+            File areaTMX = areaTMXs.get(i);
+            context.log("processFile: " + areaTMX.getName());
             File areaMapTMXMeta = new File(afterRulesAreaDirectory.getAbsolutePath() + "/" + areaTMX.getName());
-            Files.write(areaMapTMXMeta.toPath(), areaMap.getTMX().getBytes(StandardCharsets.UTF_8));
+            context.setMap(areaMapTMXMeta, areaMaps.get(i));
         }
     }
 
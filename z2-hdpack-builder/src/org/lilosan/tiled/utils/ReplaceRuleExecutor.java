@@ -1,81 +1,50 @@
 package org.lilosan.tiled.utils;
 
-import org.lilosan.tiled.TiledTMX;
-import org.lilosan.tiled.TiledTSX;
-import org.w3c.dom.Node;
-
-import java.io.File;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.util.*;
-
-import static org.lilosan.tiled.TiledTSX.*;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 public class ReplaceRuleExecutor {
-    public static void run(File finalTsxFile, List<File> finalAreaTMXs, TiledRuleProcessor.InputOutputType inputType, List<String> inputItems, TiledRuleProcessor.InputOutputType outputType, List<String> outputItems) throws Exception {
-        // Recover map file ids
-        Map<String, Integer> md5ToId = new HashMap<>();
-        List<Node> tilesMetadata = getTiles(finalTsxFile);
-        for (int logicalId = 0; logicalId < tilesMetadata.size(); logicalId++) {
-            int physicalId = getId(tilesMetadata.get(logicalId));
-            String md5 = getOriginalDataMD5(tilesMetadata.get(logicalId));
-            if (md5 != null) {
-                md5ToId.put(md5, physicalId);
-            }
-        }
-
-        // Obtain input to output mapping ids
-        Random random = new Random();
-        Map<Integer, Integer> replaceFromToId = new HashMap<>();
-        for (String input:inputItems) {
-            Integer inputTile = null;
-            switch (inputType) {
-                case id:
-                    inputTile = Integer.parseInt(input);
-                    break;
-                case md5:
-                    inputTile = md5ToId.get(input);
-                    break;
-            }
-            Integer outputTile = null;
-            switch (outputType) {
-                case id:
-                    outputTile = Integer.parseInt(getRandomElement(outputItems, random));
-                    break;
-                case md5:
-                    outputTile = md5ToId.get(getRandomElement(outputItems, random));
-                    break;
-            }
-            replaceFromToId.put(inputTile, outputTile);
-        }
-
-        // For every map
-        String tsxName = finalTsxFile.getName().substring(0, finalTsxFile.getName().indexOf(".tsx"));
-        int tileWidth = TiledTSX.getTileWidth(finalTsxFile);
-        int tileHeight = TiledTSX.getTileHeight(finalTsxFile);
 
-        for (File areaTMX:finalAreaTMXs) {
-            System.out.println("processFile: " + areaTMX.getName());
-            String tmxName = areaTMX.getName().substring(0, areaTMX.getName().indexOf(".tmx"));
+    public static final long DEFAULT_SEED = 0;
 
-            // Fix maps
-            Integer[][] csv = TiledTMX.getCSV(areaTMX);
-            TiledTMX areaMap = new TiledTMX(1, tsxName, csv.length, csv[0].length, tileWidth, tileHeight);
-
-            for (int y = 0; y < csv[0].length; y++) {
-                for (int x = 0; x < csv.length; x++) {
-                    Integer toReplace = replaceFromToId.get(csv[x][y]);
-                    if (toReplace != null) {
-                        areaMap.add(x, y, toReplace);
-                    } else {
-                        areaMap.add(x, y, csv[x][y]);
-                    }
+    /**
+     * Obtains the output of every input id. With a rule pick the output is drawn once for every input, from a generator
+     * with the seed, with a cell pick it is drawn for every cell from all the outputs. Outputs not in the tileset keep the input.
+     */
+    public static ReplaceTable compile(Map<String, Integer> md5ToId, TiledRuleProcessor.InputOutputType inputType, List<String> inputItems, TiledRuleProcessor.InputOutputType outputType, List<String> outputItems, TiledRuleProcessor.PickType pick, long seed) {
+        Random random = new Random(seed);
+        ReplaceTable replaceTable = new ReplaceTable(seed);
+        for (String input:inputItems) {
+            Integer inputTile = getId(input, inputType, md5ToId);
+            if (pick == TiledRuleProcessor.PickType.cell) {
+                int[] outputTiles = new int[outputItems.size()];
+                for (int i = 0; i < outputTiles.length; i++) {
+                    Integer outputTile = getId(outputItems.get(i), outputType, md5ToId);
+                    outputTiles[i] = (outputTile != null) ? outputTile : ReplaceTable.KEEP;
+                }
+                if (inputTile != null && inputTile >= 0) {
+                    replaceTable.putChoices(inputTile, outputTiles);
+                }
+            } else {
+                Integer outputTile = getId(getRandomElement(outputItems, random), outputType, md5ToId);
+                if (inputTile != null && inputTile >= 0) {
+                    replaceTable.put(inputTile, (outputTile != null) ? outputTile : ReplaceTable.KEEP);
                 }
             }
-            // Create Fixed map file
-            Files.write(areaTMX.toPath(), areaMap.getTMX().getBytes(StandardCharsets.UTF_8));
         }
+        return replaceTable;
+    }
 
+    private static Integer getId(String item, TiledRuleProcessor.InputOutputType type, Map<String, Integer> md5ToId) {
+        switch (type) {
+            case id:
+                return Integer.parseInt(item);
+            case md5:
+                return md5ToId.get(item);
+            default:
+                return null;
+        }
     }
 
     public static String getRandomElement(List<String> collection, Random random) {
@@ -83,4 +52,4 @@ public class ReplaceRuleExecutor {
         int item = random.nextInt(size);
         return collection.get(item);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,138 @@
+package org.lilosan.tiled.utils;
+
+import java.util.Arrays;
+
+/**
+ * A replace rule compiled for the ids of an area: the id every id becomes, in an array indexed by id.
+ * An id can also have several outputs to pick from for every cell, the pick only depends on the seed,
+ * the map and the position of the cell, so maps give the same result in any order or on any thread.
+ */
+public class ReplaceTable {
+
+    public static final int KEEP = -1;
+
+    private int[] remap;
+    private int[][] choices;
+    private long[] seeds; // Seed of the picks of every id, tables merged by then() keep the seeds of their rules
+    private final long seed;
+
+    public ReplaceTable(long seed) {
+        this.remap = new int[0];
+        this.choices = new int[0][];
+        this.seeds = new long[0];
+        this.seed = seed;
+    }
+
+    /**
+     * The id becomes the output, or stays the same for {@link #KEEP}.
+     */
+    public void put(int id, int output) {
+        ensureSize(id + 1);
+        remap[id] = (output == KEEP) ? id : output;
+        choices[id] = null;
+    }
+
+    /**
+     * The id becomes one of the outputs, picked for every cell.
+     */
+    public void putChoices(int id, int[] outputs) {
+        putChoices(id, outputs, seed);
+    }
+
+    private void putChoices(int id, int[] outputs, long choicesSeed) {
+        ensureSize(id + 1);
+        remap[id] = id;
+        choices[id] = outputs.clone();
+        for (int i = 0; i < outputs.length; i++) {
+            choices[id][i] = (outputs[i] == KEEP) ? id : outputs[i];
+        }
+        seeds[id] = choicesSeed;
+    }
+
+    private void ensureSize(int size) {
+        if (remap.length < size) {
+            int oldSize = remap.length;
+            remap = Arrays.copyOf(remap, size);
+            choices = Arrays.copyOf(choices, size);
+            seeds = Arrays.copyOf(seeds, size);
+            for (int id = oldSize; id < size; id++) {
+                remap[id] = id;
+            }
+        }
+    }
+
+    public int size() {
+        return remap.length;
+    }
+
+    /**
+     * Writes the ids of the map with the rule applied to the output, which can be the same array.
+     * The name of the map makes the picks of different maps differ.
+     */
+    public void apply(int[] map, int[] output, int width, String mapName) {
+        apply(map, output, 0, map.length, width, mapName);
+    }
+
+    /**
+     * Same as {@link #apply(int[], int[], int, String)} for the cells from start to end only.
+     */
+    public void apply(int[] map, int[] output, int start, int end, int width, String mapName) {
+        for (int i = start; i < end; i++) {
+            int id = map[i];
+            if (id < 0 || id >= remap.length) {
+                output[i] = id;
+            } else if (choices[id] == null) {
+                output[i] = remap[id];
+            } else {
+                int[] outputs = choices[id];
+                long position = ((long) (i / width) << 32) | (i % width);
+                output[i] = outputs[(int) Long.remainderUnsigned(mix(mix(seeds[id] ^ mapName.hashCode()) + position), outputs.length)];
+            }
+        }
+    }
+
+    /**
+     * Returns a table doing this replacement then the next one, or null when that would need two picks for the same cell.
+     */
+    public ReplaceTable then(ReplaceTable next) {
+        ReplaceTable merged = new ReplaceTable(seed);
+        merged.ensureSize(Math.max(size(), next.size()));
+        for (int id = 0; id < merged.size(); id++) {
+            int[] outputs = (id < size()) ? choices[id] : null;
+            if (outputs == null) {
+                int output = (id < size()) ? remap[id] : id;
+                if (output < next.size() && next.choices[output] != null) {
+                    merged.putChoices(id, next.choices[output], next.seeds[output]);
+                } else {
+                    merged.put(id, next.get(output));
+                }
+            } else {
+                int[] nextOutputs = new int[outputs.length];
+                for (int i = 0; i < outputs.length; i++) {
+                    if (outputs[i] < next.size() && next.choices[outputs[i]] != null) {
+                        return null;
+                    }
+                    nextOutputs[i] = next.get(outputs[i]);
+                }
+                merged.putChoices(id, nextOutputs, seeds[id]);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * The output of an id without picks.
+     */
+    private int get(int id) {
+        return (id >= 0 && id < remap.length) ? remap[id] : id;
+    }
+
+    /**
+     * SplitMix64 finalizer, spreads close positions to unrelated values.
+     */
+    static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -0,0 +1,161 @@
+package org.lilosan.tiled.utils;
+
+import org.lilosan.tiled.BuildMetrics;
+import org.lilosan.tiled.TiledTMX;
+import org.lilosan.tiled.TsxDocument;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Consecutive replace and terrain rules of an area, applied to every map in a single pass. Consecutive replace rules
+ * are merged into one table when they can be, and the rules run row by row: a terrain rule fixes a row as soon as the
+ * rule before it has produced the row below, so the rows every rule reads are the ones just written by the previous one.
+ * The result is the same as running the rules one after the other over the whole maps.
+ */
+public class RuleProgram {
+
+    private interface Stage {
+        /**
+         * The rows below a row that must be done by the previous stage before this one can do it.
+         */
+        int getLag();
+
+        void apply(int[] map, int[] output, int width, int height, int y, String mapName);
+    }
+
+    private static class ReplaceStage implements Stage {
+        private final ReplaceTable table;
+
+        private ReplaceStage(ReplaceTable table) {
+            this.table = table;
+        }
+
+        @Override
+        public int getLag() {
+            return 0;
+        }
+
+        @Override
+        public void apply(int[] map, int[] output, int width, int height, int y, String mapName) {
+            table.apply(map, output, y * width, (y + 1) * width, width, mapName);
+        }
+    }
+
+    private static class TerrainStage implements Stage {
+        private final TerrainTable table;
+
+        private TerrainStage(TerrainTable table) {
+            this.table = table;
+        }
+
+        @Override
+        public int getLag() {
+            return 1;
+        }
+
+        @Override
+        public void apply(int[] map, int[] output, int width, int height, int y, String mapName) {
+            table.apply(map, output, width, height, y);
+        }
+    }
+
+    private final List<Stage> stages;
+    private int ruleCount;
+
+    public RuleProgram() {
+        this.stages = new ArrayList<>();
+    }
+
+    public void addReplace(ReplaceTable table) {
+        ruleCount++;
+        if (!stages.isEmpty() && stages.get(stages.size() - 1) instanceof ReplaceStage) {
+            ReplaceTable merged = ((ReplaceStage) stages.get(stages.size() - 1)).table.then(table);
+            if (merged != null) {
+                stages.set(stages.size() - 1, new ReplaceStage(merged));
+                return;
+            }
+        }
+        stages.add(new ReplaceStage(table));
+    }
+
+    public void addTerrain(TerrainTable table) {
+        ruleCount++;
+        stages.add(new TerrainStage(table));
+    }
+
+    public boolean isEmpty() {
+        return ruleCount == 0;
+    }
+
+    public int getRuleCount() {
+        return ruleCount;
+    }
+
+    public int getStageCount() {
+        return stages.size();
+    }
+
+    /**
+     * Writes the ids of the map with all the rules applied to the output, which must be a different array.
+     */
+    public void apply(int[] map, int[] output, int width, int height, String mapName) {
+        if (stages.isEmpty()) {
+            System.arraycopy(map, 0, output, 0, map.length);
+            return;
+        }
+        int[][] outputs = new int[stages.size()][];
+        int[] lags = new int[stages.size()];
+        int lag = 0;
+        for (int s = 0; s < stages.size(); s++) {
+            outputs[s] = (s == stages.size() - 1) ? output : new int[map.length];
+            lag += stages.get(s).getLag();
+            lags[s] = lag;
+        }
+
+        // Every step does the rows each stage can do, the previous stage did the row below in an earlier step
+        for (int step = 0; step < height + lag; step++) {
+            for (int s = 0; s < stages.size(); s++) {
+                int y = step - lags[s];
+                if (y >= 0 && y < height) {
+                    stages.get(s).apply((s == 0) ? map : outputs[s - 1], outputs[s], width, height, y, mapName);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the rules to the maps of the context, they are written by the context.
+     */
+    public void run(AreaRuleContext context) throws Exception {
+        TsxDocument finalTsx = context.getTileset();
+        String tsxName = context.getTsxName();
+        int tileWidth = finalTsx.getTileWidth();
+        int tileHeight = finalTsx.getTileHeight();
+
+        BuildMetrics metrics = BuildMetrics.getShared();
+        List<Map.Entry<File, TiledTMX>> areaTMXs = new ArrayList<>(context.getMaps().entrySet());
+        List<Callable<TiledTMX>> tasks = new ArrayList<>();
+        for (Map.Entry<File, TiledTMX> areaTMX:areaTMXs) {
+            tasks.add(() -> {
+                TiledTMX map = areaTMX.getValue();
+                TiledTMX areaMap = new TiledTMX(1, tsxName, map.getWidth(), map.getHeight(), tileWidth, tileHeight);
+
+                long start = metrics.start();
+                apply(map.getData(), areaMap.getData(), map.getWidth(), map.getHeight(), areaTMX.getKey().getName());
+                metrics.stop(BuildMetrics.Phase.RULE_PASS, start);
+                metrics.increment(BuildMetrics.Counter.MAPS_PROCESSED);
+                return areaMap;
+            });
+        }
+        List<TiledTMX> areaMaps = context.invokeAll(tasks);
+        for (int i = 0; i < areaTMXs.size(); i++) {
+            context.log("processFile: " + areaTMXs.get(i).getKey().getName());
+            // Fixed map, written after the last rule
+            context.setMap(areaTMXs.get(i).getKey(), areaMaps.get(i));
+        }
+    }
+}
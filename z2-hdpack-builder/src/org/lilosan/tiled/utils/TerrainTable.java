@@ -0,0 +1,166 @@
+package org.lilosan.tiled.utils;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A terrain rule compiled for the ids of an area. Every terrain cell gets a key from its 8 neighbours, one bit for
+ * each neighbour being terrain, and for the 4 edge neighbours one more bit for being inside the map: outside the
+ * map doesn't count as terrain for the corners but doesn't count as a border for the edges either. A table built
+ * once from the original chain of conditions gives the output for every key, in the order of the rule outputs:
+ * the 3x3 outputs by rows, then the 4 corners.
+ */
+public class TerrainTable {
+
+    static final int TOP = 1;
+    static final int LEFT = 1 << 1;
+    static final int RIGHT = 1 << 2;
+    static final int BOTTOM = 1 << 3;
+    static final int TOP_LEFT = 1 << 4;
+    static final int TOP_RIGHT = 1 << 5;
+    static final int BOTTOM_LEFT = 1 << 6;
+    static final int BOTTOM_RIGHT = 1 << 7;
+    static final int HAS_TOP = 1 << 8;
+    static final int HAS_LEFT = 1 << 9;
+    static final int HAS_RIGHT = 1 << 10;
+    static final int HAS_BOTTOM = 1 << 11;
+
+    public static final int OUTPUTS = 13;
+    private static final int CENTER = 4;
+    private static final byte[] OUTPUT_BY_KEY = new byte[1 << 12];
+
+    static {
+        for (int key = 0; key < OUTPUT_BY_KEY.length; key++) {
+            OUTPUT_BY_KEY[key] = (byte) getOutput(key);
+        }
+    }
+
+    private final BitSet terrain;
+    private final int[][] outputsById;
+
+    public TerrainTable(Map<String, Integer> md5ToId, Map<String, List<String>> inputsToOutputs) {
+        this.terrain = new BitSet();
+        int maxId = -1;
+        for (String input:inputsToOutputs.keySet()) {
+            Integer id = md5ToId.get(input);
+            if (id != null) {
+                terrain.set(id);
+                maxId = Math.max(maxId, id);
+            }
+        }
+        this.outputsById = new int[maxId + 1][];
+        for (Map.Entry<String, List<String>> inputToOutputs:inputsToOutputs.entrySet()) {
+            Integer id = md5ToId.get(inputToOutputs.getKey());
+            int[] outputs = new int[OUTPUTS];
+            for (int i = 0; i < OUTPUTS; i++) {
+                outputs[i] = Integer.parseInt(inputToOutputs.getValue().get(i));
+            }
+            if (id != null) {
+                outputsById[id] = outputs;
+            }
+        }
+    }
+
+    public boolean isTerrain(int id) {
+        return id >= 0 && terrain.get(id);
+    }
+
+    /**
+     * Writes the ids of the map with the rule applied to the output, which must be another array of the same size.
+     */
+    public void apply(int[] map, int[] output, int width, int height) {
+        for (int y = 0; y < height; y++) {
+            apply(map, output, width, height, y);
+        }
+    }
+
+    /**
+     * Same as {@link #apply(int[], int[], int, int)} for one row, which only needs the rows above and below it.
+     */
+    public void apply(int[] map, int[] output, int width, int height, int y) {
+        for (int x = 0; x < width; x++) {
+            int i = y * width + x;
+            int id = map[i];
+            output[i] = (isTerrain(id)) ? outputsById[id][OUTPUT_BY_KEY[getKey(map, width, height, x, y)]] : id;
+        }
+    }
+
+    int getKey(int[] map, int width, int height, int x, int y) {
+        int i = y * width + x;
+        boolean hasTop = y > 0;
+        boolean hasLeft = x > 0;
+        boolean hasRight = x + 1 < width;
+        boolean hasBottom = y + 1 < height;
+        int key = 0;
+        if (hasTop) {
+            key |= HAS_TOP | ((isTerrain(map[i - width])) ? TOP : 0);
+            key |= (hasLeft && isTerrain(map[i - width - 1])) ? TOP_LEFT : 0;
+            key |= (hasRight && isTerrain(map[i - width + 1])) ? TOP_RIGHT : 0;
+        }
+        if (hasLeft) {
+            key |= HAS_LEFT | ((isTerrain(map[i - 1])) ? LEFT : 0);
+        }
+        if (hasRight) {
+            key |= HAS_RIGHT | ((isTerrain(map[i + 1])) ? RIGHT : 0);
+        }
+        if (hasBottom) {
+            key |= HAS_BOTTOM | ((isTerrain(map[i + width])) ? BOTTOM : 0);
+            key |= (hasLeft && isTerrain(map[i + width - 1])) ? BOTTOM_LEFT : 0;
+            key |= (hasRight && isTerrain(map[i + width + 1])) ? BOTTOM_RIGHT : 0;
+        }
+        return key;
+    }
+
+    /**
+     * The original conditions, later ones win over earlier ones.
+     */
+    private static int getOutput(int key) {
+        // A border is a neighbour inside the map that is not terrain
+        boolean topBorder = (key & HAS_TOP) != 0 && (key & TOP) == 0;
+        boolean leftBorder = (key & HAS_LEFT) != 0 && (key & LEFT) == 0;
+        boolean rightBorder = (key & HAS_RIGHT) != 0 && (key & RIGHT) == 0;
+        boolean bottomBorder = (key & HAS_BOTTOM) != 0 && (key & BOTTOM) == 0;
+
+        int output = CENTER;
+        if (leftBorder && topBorder && !rightBorder) {
+            output = 0; // Top-Left
+        }
+        if (!leftBorder && topBorder && !rightBorder) {
+            output = 1; // Top
+        }
+        if (!leftBorder && topBorder && rightBorder) {
+            output = 2; // Top-Right
+        }
+        if (!topBorder && leftBorder && !bottomBorder) {
+            output = 3; // Left
+        }
+        if (!topBorder && rightBorder && !bottomBorder) {
+            output = 5; // Right
+        }
+        if (leftBorder && bottomBorder && !rightBorder) {
+            output = 6; // Bottom-Left
+        }
+        if (!leftBorder && bottomBorder && !rightBorder) {
+            output = 7; // Bottom
+        }
+        if (!leftBorder && bottomBorder && rightBorder) {
+            output = 8; // Bottom-Right
+        }
+
+        // Corners
+        if ((key & BOTTOM) != 0 && (key & RIGHT) != 0 && (key & BOTTOM_RIGHT) == 0) {
+            output = 9; // Top-Left Corner
+        }
+        if ((key & BOTTOM) != 0 && (key & LEFT) != 0 && (key & BOTTOM_LEFT) == 0) {
+            output = 10; // Top-Right Corner
+        }
+        if ((key & TOP) != 0 && (key & RIGHT) != 0 && (key & TOP_RIGHT) == 0) {
+            output = 11; // Bottom-Left Corner
+        }
+        if ((key & TOP) != 0 && (key & LEFT) != 0 && (key & TOP_LEFT) == 0) {
+            output = 12; // Bottom-Right Corner
+        }
+        return output;
+    }
+}
@@ -0,0 +1,35 @@
+package org.lilosan.tiled.utils;
+
+import org.lilosan.tiled.TileFingerprint;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The first position at which each tile of an area is seen, filled by the threads scanning the screenshots
+ * in any order. Positions are ordered like the sequential extraction reads the cells: by screenshot, then cell.
+ */
+public class TileDictionary {
+
+    private final Map<TileFingerprint, Long> firstPositionByFingerprint;
+
+    public TileDictionary() {
+        this.firstPositionByFingerprint = new ConcurrentHashMap<>();
+    }
+
+    public static long getPosition(int map, int cell) {
+        return ((long) map << 32) | cell;
+    }
+
+    /**
+     * Registers the tile seen at the given position, returns true if it has not been seen at an earlier position so far.
+     * The tile at the first position of a fingerprint always gets true, whatever the order of the calls.
+     */
+    public boolean claim(TileFingerprint fingerprint, long position) {
+        return firstPositionByFingerprint.merge(fingerprint, position, Math::min) == position;
+    }
+
+    public int size() {
+        return firstPositionByFingerprint.size();
+    }
+}
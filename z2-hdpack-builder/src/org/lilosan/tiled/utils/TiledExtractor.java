@@ -1,14 +1,21 @@
 package org.lilosan.tiled.utils;
 
 import org.lilosan.tiled.Tile;
+import org.lilosan.tiled.TileFingerprint;
 import org.lilosan.tiled.TiledTMX;
 import org.lilosan.tiled.TiledTSX;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.Raster;
 import java.io.File;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import javax.imageio.ImageIO;
 
 public class TiledExtractor {
@@ -21,60 +28,135 @@ public class TiledExtractor {
 
     public static final int NUMBER_OF_TILES_IN_ONE_TILESET_ROW = 32;
 
+    /**
+     * The tiles of a screenshot, cell by cell in rows. Only the tiles seen there first are kept,
+     * the other cells have their fingerprint only.
+     */
+    private static class AreaMapScan {
+        private final String name;
+        private final int width;
+        private final int height;
+        private final TileFingerprint[] fingerprints;
+        private final Tile[] tiles;
+
+        private AreaMapScan(String name, int width, int height) {
+            this.name = name;
+            this.width = width;
+            this.height = height;
+            int cells = (width / inputTileSizeWidth) * (height / inputTileSizeHeight);
+            this.fingerprints = new TileFingerprint[cells];
+            this.tiles = new Tile[cells];
+        }
+    }
+
     public static void main(String[] args) throws Exception {
-        File inputFolder = new File(INPUT_FOLDER);
-        for (File areaDirectory:inputFolder.listFiles()) {
-            if(areaDirectory.isDirectory()) {
-                processArea(areaDirectory);
+        ToolOptions options = ToolOptions.parse(args, false);
+
+        // Screenshots are scanned in parallel, the ids are given in order afterwards
+        ForkJoinPool pool = (options.getThreads() > 1) ? new ForkJoinPool(options.getThreads()) : null;
+        try {
+            File inputFolder = new File(INPUT_FOLDER);
+            for (File areaDirectory:inputFolder.listFiles()) {
+                if(areaDirectory.isDirectory()) {
+                    processArea(areaDirectory, pool);
+                }
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
             }
         }
     }
 
-    private static void processArea(File originalAreaDirectory) throws Exception {
+    private static void processArea(File originalAreaDirectory, ForkJoinPool pool) throws Exception {
         System.out.println("processArea: " + originalAreaDirectory.getName());
         File generatedAreaDirectory = new File(GENERATED_FOLDER + "/" + originalAreaDirectory.getName());
         generatedAreaDirectory.mkdirs();
 
         TiledTSX areaTiles = new TiledTSX(originalAreaDirectory.getName(), outputScaleFactor, inputTileSizeWidth, inputTileSizeHeight, NUMBER_OF_TILES_IN_ONE_TILESET_ROW);
-        areaTiles.add(Tile.getEmptyTile(inputTileSizeWidth, inputTileSizeHeight));
+        Tile emptyTile = Tile.getEmptyTile(inputTileSizeWidth, inputTileSizeHeight);
+        Map<TileFingerprint, Integer> idByFingerprint = new HashMap<>();
+        idByFingerprint.put(emptyTile.getFingerprint(), areaTiles.add(emptyTile));
 
+        List<File> areaMapPNGs = new ArrayList<>();
         for (File areaMapPNG:originalAreaDirectory.listFiles()) {
             if (areaMapPNG.getName().endsWith(".png")) {
-                String areaMapName = areaMapPNG.getName().substring(0, areaMapPNG.getName().indexOf(".png"));
-                TiledTMX areaMap = processAreaMap(areaTiles, areaMapPNG);
-                System.out.println("Creating Map TMX with size: " + areaMap.getSize());
-                File areaMapTMXMeta = new File(generatedAreaDirectory.getAbsolutePath() + "/" + areaMapName + ".tmx");
-                Files.write(areaMapTMXMeta.toPath(), areaMap.getTMX().getBytes(StandardCharsets.UTF_8));
-                // File areaMapTMXPng = new File(generatedAreaDirectory.getAbsolutePath() + "/" + areaMapName + ".png");
-                // ImageIO.write(areaMap.getBufferedImage(areaTiles), "png", areaMapTMXPng);
+                areaMapPNGs.add(areaMapPNG);
             }
         }
+        TileDictionary dictionary = new TileDictionary();
+        List<Future<AreaMapScan>> scans = new ArrayList<>();
+        for (int i = 0; i < areaMapPNGs.size(); i++) {
+            File areaMapPNG = areaMapPNGs.get(i);
+            int index = i;
+            scans.add((pool != null) ? pool.submit(() -> scanAreaMap(areaMapPNG, index, dictionary)) : CompletableFuture.completedFuture(scanAreaMap(areaMapPNG, index, dictionary)));
+        }
+
+        for (Future<AreaMapScan> future:scans) {
+            AreaMapScan scan;
+            try {
+                scan = future.get();
+            } catch (ExecutionException e) {
+                throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+            }
+            String areaMapName = scan.name.substring(0, scan.name.indexOf(".png"));
+            TiledTMX areaMap = processAreaMap(areaTiles, idByFingerprint, scan);
+            System.out.println("Creating Map TMX with size: " + areaMap.getSize());
+            File areaMapTMXMeta = new File(generatedAreaDirectory.getAbsolutePath() + "/" + areaMapName + ".tmx");
+            areaMap.write(areaMapTMXMeta.toPath());
+            // File areaMapTMXPng = new File(generatedAreaDirectory.getAbsolutePath() + "/" + areaMapName + ".png");
+            // ImageIO.write(areaMap.getBufferedImage(areaTiles), "png", areaMapTMXPng);
+        }
 
         System.out.println("Creating Area TSX with size: " + areaTiles.size());
         File tileSetTSXImage = new File(generatedAreaDirectory.getAbsolutePath() + "/" + areaTiles.getName() + ".png");
         ImageIO.write(areaTiles.getBufferedImage(), "png", tileSetTSXImage);
         File tileSetTSXMeta = new File(generatedAreaDirectory.getAbsolutePath() + "/" + areaTiles.getName() + ".tsx");
-        Files.write(tileSetTSXMeta.toPath(), areaTiles.getTSX().getBytes(StandardCharsets.UTF_8));
+        areaTiles.write(tileSetTSXMeta.toPath());
     }
 
-    private static TiledTMX processAreaMap(TiledTSX areaTiles, File areaMapPNG) throws Exception {
-        System.out.println("processAreaMap: " + areaMapPNG.getName());
+    /**
+     * Decodes and fingerprints a screenshot, safe to run for several screenshots of an area at the same time.
+     * The cells are hashed in place in the data buffer of the screenshot, a Tile is only made for the cells
+     * whose pixels have not been seen before.
+     */
+    private static AreaMapScan scanAreaMap(File areaMapPNG, int index, TileDictionary dictionary) throws Exception {
         BufferedImage inputImage = ImageIO.read(areaMapPNG);
-        Raster raster = inputImage.getData();
-        int width = raster.getWidth();
-        System.out.println("Width: " + width);
-        int height = raster.getHeight();
-        System.out.println("Height: " + height);
-        TiledTMX areaMap = new TiledTMX(outputScaleFactor, areaTiles.getName(), width / inputTileSizeWidth, height / inputTileSizeHeight, areaTiles.getTileWidth(), areaTiles.getTileHeight());
-        for(int y = 0; y < height; y += inputTileSizeHeight) {
-            for (int x = 0; x < width; x += inputTileSizeWidth) {
-                BufferedImage tile = inputImage.getSubimage(x, y, inputTileSizeWidth, inputTileSizeHeight);
-                Tile xy = new Tile(tile);
-                Integer id = areaTiles.add(xy);
-                areaMap.add(x / inputTileSizeWidth, y / inputTileSizeHeight, id);
+        Raster raster = inputImage.getRaster();
+        AreaMapScan scan = new AreaMapScan(areaMapPNG.getName(), inputImage.getWidth(), inputImage.getHeight());
+        int cell = 0;
+        for(int y = 0; y < scan.height; y += inputTileSizeHeight) {
+            for (int x = 0; x < scan.width; x += inputTileSizeWidth) {
+                TileFingerprint fingerprint = TileFingerprint.of(raster, x, y, inputTileSizeWidth, inputTileSizeHeight);
+                scan.fingerprints[cell] = fingerprint;
+                if (dictionary.claim(fingerprint, TileDictionary.getPosition(index, cell))) {
+                    scan.tiles[cell] = new Tile(inputImage.getSubimage(x, y, inputTileSizeWidth, inputTileSizeHeight), fingerprint);
+                }
+                cell++;
             }
         }
-        return areaMap;
+        return scan;
+    }
 
+    /**
+     * Gives the ids to the tiles of a screenshot, the screenshots have to be given in order
+     * so every tile gets the id of the sequential extraction.
+     */
+    private static TiledTMX processAreaMap(TiledTSX areaTiles, Map<TileFingerprint, Integer> idByFingerprint, AreaMapScan scan) {
+        System.out.println("processAreaMap: " + scan.name);
+        System.out.println("Width: " + scan.width);
+        System.out.println("Height: " + scan.height);
+        int columns = scan.width / inputTileSizeWidth;
+        TiledTMX areaMap = new TiledTMX(outputScaleFactor, areaTiles.getName(), columns, scan.height / inputTileSizeHeight, areaTiles.getTileWidth(), areaTiles.getTileHeight());
+        for (int cell = 0; cell < scan.fingerprints.length; cell++) {
+            Integer id = idByFingerprint.get(scan.fingerprints[cell]);
+            if (id == null) {
+                // First sighting, the scan of this screenshot kept the tile
+                id = areaTiles.add(scan.tiles[cell]);
+                idByFingerprint.put(scan.fingerprints[cell], id);
+            }
+            areaMap.set(cell % columns, cell / columns, id);
+        }
+        return areaMap;
     }
 }
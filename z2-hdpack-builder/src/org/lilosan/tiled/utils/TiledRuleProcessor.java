@@ -1,16 +1,21 @@
 package org.lilosan.tiled.utils;
 
+import org.lilosan.tiled.BuildMetrics;
 import org.lilosan.tiled.TiledTMX;
 import org.lilosan.tiled.TiledTSX;
 import org.lilosan.tiled.XMLUtils;
 import org.w3c.dom.Node;
 
 import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import static org.lilosan.tiled.utils.TiledExtractor.GENERATED_FOLDER;
 import static org.lilosan.tiled.utils.TiledExtractor.outputScaleFactor;
@@ -19,92 +24,156 @@ public class TiledRuleProcessor {
 
     public enum OrderType { order, replace, terrain };
     public enum InputOutputType { id, md5 };
+    public enum PickType { rule, cell };
 
     public static final String RULES_FOLDER = "../../game-maps-rules";
     public static final String AFTER_RULES_FOLDER = "../../game-maps-after-rules";
 
     public static void main(String[] args) throws Exception {
-        File inputFolder = new File(RULES_FOLDER);
-        for (File areaDirectory : inputFolder.listFiles()) {
-            if (areaDirectory.isDirectory()) {
-                processArea(areaDirectory);
+        ToolOptions options = ToolOptions.parse(args, true);
+
+        // Areas share nothing, with a pool they are processed together and the maps of every rule too
+        ForkJoinPool pool = (options.getThreads() > 1) ? new ForkJoinPool(options.getThreads()) : null;
+        try {
+            File inputFolder = new File(RULES_FOLDER);
+            List<Future<String>> logs = new ArrayList<>();
+            for (File areaDirectory : inputFolder.listFiles()) {
+                if (areaDirectory.isDirectory()) {
+                    if (pool == null) {
+                        BuildMetrics.setArea(areaDirectory.getName());
+                        processArea(areaDirectory, null);
+                    } else {
+                        logs.add(pool.submit(() -> {
+                            // The thread may be waiting for the maps of another area, its area is restored after this one
+                            String previousArea = BuildMetrics.getArea();
+                            BuildMetrics.setArea(areaDirectory.getName());
+                            try {
+                                return processArea(areaDirectory, pool);
+                            } finally {
+                                BuildMetrics.setArea(previousArea);
+                            }
+                        }));
+                    }
+                }
             }
+            // The logs of the areas are printed in order, each one at once
+            for (Future<String> log:logs) {
+                System.out.print(log.get());
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+        BuildMetrics.setArea(null);
+        if (options.getReport() != null) {
+            BuildMetrics.getShared().writeReport(options.getReport());
+            System.out.println("Report written to: " + options.getReport());
         }
     }
 
-    private static void processArea(File rulesAreaDirectory) throws Exception {
-        System.out.println("processArea: " + rulesAreaDirectory.getName());
+    /**
+     * Applies the rules of the area, returns its log when there is a pool, it is printed right away otherwise.
+     */
+    private static String processArea(File rulesAreaDirectory, ForkJoinPool pool) throws Exception {
+        // The maps are read once, the rules are applied to them in memory
+        AreaRuleContext context = new AreaRuleContext(getAreaTSX(AFTER_RULES_FOLDER, rulesAreaDirectory.getName()));
+        context.setPool(pool);
+        context.log("processArea: " + rulesAreaDirectory.getName());
         File rulesFile = new File(RULES_FOLDER + "/" + rulesAreaDirectory.getName() + "/rules.xml");
         if (!rulesFile.exists()) {
-            System.out.println("No rules.xml found");
-            return; // Do nothing
+            context.log("No rules.xml found");
+            return context.takeLog(); // Do nothing
         }
         File afterRulesAreaDirectory = new File(AFTER_RULES_FOLDER + "/" + rulesAreaDirectory.getName());
         afterRulesAreaDirectory.mkdirs();
 
         Node rulesRoot = XMLUtils.getRootNode(rulesFile, "rules");
         List<Node> rules = XMLUtils.getChildTags(rulesRoot, "rule");
+        // Consecutive replace and terrain rules run together in one pass over the maps, order rules change the tileset between them
+        RuleProgram program = new RuleProgram();
         for (Node rule:rules) {
             OrderType type = OrderType.valueOf(XMLUtils.getAttribute(rule, "type"));
             switch (type) {
                 case order:
-                    runOrder(rule, rulesAreaDirectory.getName());
+                    runProgram(program, context);
+                    program = new RuleProgram();
+                    runOrder(rule, rulesAreaDirectory.getName(), context);
                     break;
                 case replace:
-                    runReplace(rule, rulesAreaDirectory.getName());
+                    program.addReplace(compileReplace(rule, context));
                     break;
                 case terrain:
-                    runTerrain(rule, rulesAreaDirectory.getName());
+                    program.addTerrain(compileTerrain(rule, context));
                     break;
             }
         }
+        runProgram(program, context);
 
         // Write finished maps
-        List<File> tmxFiles = getAreaTMXs(AFTER_RULES_FOLDER, rulesAreaDirectory.getName());
-        File tsxFile = getAreaTSX(AFTER_RULES_FOLDER, rulesAreaDirectory.getName());
-        TiledTSX tsx = TiledTSX.getInstance(tsxFile);
-        for (File map:tmxFiles) {
-            TiledTMX tmx = TiledTMX.getInstance(map);
-            String areaMapName = map.getName().substring(0, map.getName().indexOf(".tmx"));
-            ImageIO.write(tmx.getBufferedImage(tsx, outputScaleFactor * 32), "png", new File(AFTER_RULES_FOLDER + "/" + rulesAreaDirectory.getName() + "/" + areaMapName + ".png"));
+        context.write();
+        TiledTSX tsx = TiledTSX.getInstance(context.getTsxFile());
+        BuildMetrics metrics = BuildMetrics.getShared();
+        List<Callable<Void>> images = new ArrayList<>();
+        for (Map.Entry<File, TiledTMX> areaMap:context.getMaps().entrySet()) {
+            images.add(() -> {
+                File map = areaMap.getKey();
+                TiledTMX tmx = areaMap.getValue();
+                String areaMapName = map.getName().substring(0, map.getName().indexOf(".tmx"));
+                BufferedImage image = tmx.getBufferedImage(tsx, outputScaleFactor * 32);
+                File imageFile = new File(AFTER_RULES_FOLDER + "/" + rulesAreaDirectory.getName() + "/" + areaMapName + ".png");
+                long start = metrics.start();
+                ImageIO.write(image, "png", imageFile);
+                metrics.add(BuildMetrics.Counter.BYTES_WRITTEN, imageFile.length());
+                metrics.stop(BuildMetrics.Phase.PNG_ENCODE, start);
+                return null;
+            });
+        }
+        context.invokeAll(images);
+        return context.takeLog();
+    }
+
+    private static void runProgram(RuleProgram program, AreaRuleContext context) throws Exception {
+        if (!program.isEmpty()) {
+            context.log("runRules: " + program.getRuleCount() + " rules in " + program.getStageCount() + " stages");
+            program.run(context);
         }
     }
 
-    private static void runTerrain(Node rule, String areaName) throws Exception {
-        File areaTSX = getAreaTSX(AFTER_RULES_FOLDER, areaName);
-        List<File> areaTMXs = getAreaTMXs(AFTER_RULES_FOLDER, areaName);
+    private static TerrainTable compileTerrain(Node rule, AreaRuleContext context) throws Exception {
         Node input = XMLUtils.getChildTag(rule, "input");
         String[] md5sInputGroups = input.getFirstChild().getNodeValue().split(", ");
         Node output = XMLUtils.getChildTag(rule, "output");
         String[] idsOutputGroups = output.getFirstChild().getNodeValue().split(", ");
         if (md5sInputGroups.length != idsOutputGroups.length) {
-            throw new RuntimeException("runTerrain: input and output groups number differ");
+            throw new RuntimeException("compileTerrain: input and output groups number differ");
         }
         Map<String, List<String>> inputsToOutputs = new HashMap<>();
         for (int i = 0; i < md5sInputGroups.length; i++) {
             List<String> idsOutputGroup = List.of(idsOutputGroups[i].split(" "));
             inputsToOutputs.put(md5sInputGroups[i], idsOutputGroup);
         }
-        TerrainRuleExecutor.run(areaTSX, areaTMXs, inputsToOutputs);
+        return new TerrainTable(context.getIdByMD5(), inputsToOutputs);
     }
 
-    private static void runReplace(Node rule, String areaName) throws Exception {
-        File areaTSX = getAreaTSX(AFTER_RULES_FOLDER, areaName);
-        List<File> areaTMXs = getAreaTMXs(AFTER_RULES_FOLDER, areaName);
+    private static ReplaceTable compileReplace(Node rule, AreaRuleContext context) throws Exception {
         Node input = XMLUtils.getChildTag(rule, "input");
         InputOutputType inputType = InputOutputType.valueOf(XMLUtils.getAttribute(input, "type"));
         List<String> inputItems = List.of(input.getFirstChild().getNodeValue().split(" "));
         Node output = XMLUtils.getChildTag(rule, "output");
         InputOutputType outputType = InputOutputType.valueOf(XMLUtils.getAttribute(output, "type"));
         List<String> outputItems = List.of(output.getFirstChild().getNodeValue().split(" "));
-        ReplaceRuleExecutor.run(areaTSX, areaTMXs, inputType, inputItems, outputType, outputItems);
+        // Outputs are picked once for the rule or for every cell, reproducibly from the seed
+        PickType pick = PickType.valueOf(XMLUtils.getAttribute(output, "pick", PickType.rule.name()));
+        long seed = Long.parseLong(XMLUtils.getAttribute(rule, "seed", Long.toString(ReplaceRuleExecutor.DEFAULT_SEED)));
+        return ReplaceRuleExecutor.compile(context.getIdByMD5(), inputType, inputItems, outputType, outputItems, pick, seed);
     }
 
-    private static void runOrder(Node rule, String areaName) throws Exception {
+    private static void runOrder(Node rule, String areaName, AreaRuleContext context) throws Exception {
         File areaTSX = getAreaTSX(RULES_FOLDER, areaName);
         File areaPNG = getAreaPNG(RULES_FOLDER, areaName);
         List<File> areaTMXs = getAreaTMXs(GENERATED_FOLDER, areaName);
-        OrderRuleExecutor.run(new File(AFTER_RULES_FOLDER + "/" + areaName), areaTSX, areaPNG, areaTMXs);
+        OrderRuleExecutor.run(context, areaTSX, areaPNG, areaTMXs);
     }
 
     private static File getAreaPNG(String stepFolder, String areaName) {
@@ -0,0 +1,59 @@
+package org.lilosan.tiled.utils;
+
+import java.nio.file.Path;
+
+/**
+ * The command line options shared by the tools of utils, each tool says which ones it accepts.
+ */
+public class ToolOptions {
+
+    private int threads = 1;
+    private Path report = null;
+
+    /**
+     * Parses --threads N, and --report file when the tool writes a report.
+     */
+    public static ToolOptions parse(String[] args, boolean acceptsReport) {
+        ToolOptions options = new ToolOptions();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--threads":
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException("--threads requires a number of threads");
+                    }
+                    try {
+                        options.threads = Integer.parseInt(args[++i]);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("--threads requires a number of threads, not: " + args[i]);
+                    }
+                    if (options.threads < 1) {
+                        throw new IllegalArgumentException("--threads must be at least 1");
+                    }
+                    break;
+                case "--report":
+                    if (!acceptsReport) {
+                        throw new IllegalArgumentException("Unknown argument: " + args[i]);
+                    }
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException("--report requires the file to write the report to");
+                    }
+                    options.report = Path.of(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+        return options;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * The file to write the metrics to, or null.
+     */
+    public Path getReport() {
+        return report;
+    }
+}